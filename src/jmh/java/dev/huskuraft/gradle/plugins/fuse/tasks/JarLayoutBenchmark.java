@@ -0,0 +1,132 @@
+package dev.huskuraft.gradle.plugins.fuse.tasks;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarFile;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Reads a fused jar the way a loader does while starting, for each output layout. The jar is fused once per trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class JarLayoutBenchmark {
+
+    /**
+     * The shape of every input jar, see {@link SyntheticJars.Shape#parse(String)}
+     */
+    @Param({"2000:1000:8:32:16"})
+    public String shape;
+
+    @Param({"DEFAULT", "STARTUP"})
+    public FuseLayout layout;
+
+    @Param({"0", "4096"})
+    public int storeThreshold;
+
+    private File directory;
+    private File jar;
+    private List<String> classes;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("fuse-jmh").toFile();
+        var fuses = SyntheticJars.generate(new File(directory, "input"), SyntheticJars.Shape.parse(shape), "forge", "fabric", "quilt");
+        var settings = SyntheticJars.settings(directory, fuses)
+            .layout(layout)
+            .storeThreshold(storeThreshold)
+            .storeCompressedFormats(storeThreshold > 0)
+            .build();
+        jar = settings.jarFile();
+        new MergeJarAction(settings).mergeFuse();
+
+        classes = new ArrayList<>();
+        try (var file = new JarFile(jar)) {
+            file.stream().filter(entry -> entry.getName().endsWith(".class")).forEach(entry -> classes.add(entry.getName()));
+        }
+        classes.sort(null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        FileUtils.deleteQuietly(directory);
+    }
+
+    /**
+     * Open the jar and read its manifest and service files
+     */
+    @Benchmark
+    public void openJar(Blackhole blackhole) throws IOException {
+        try (var file = new JarFile(jar)) {
+            blackhole.consume(file.getManifest());
+            var entries = file.entries();
+            while (entries.hasMoreElements()) {
+                var entry = entries.nextElement();
+                if (entry.getName().startsWith("META-INF/services/")) {
+                    try (var input = file.getInputStream(entry)) {
+                        blackhole.consume(input.readAllBytes());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Look up and read every class by name, package by package, as a class loader does
+     */
+    @Benchmark
+    public void loadClasses(Blackhole blackhole) throws IOException {
+        try (var file = new JarFile(jar)) {
+            for (var name : classes) {
+                try (var input = file.getInputStream(file.getJarEntry(name))) {
+                    blackhole.consume(input.readAllBytes());
+                }
+            }
+        }
+    }
+
+    /**
+     * Stream the jar from the start until every service file is read, as loaders scanning the jar without its central directory do
+     */
+    @Benchmark
+    public void streamServices(Blackhole blackhole) throws IOException {
+        try (var input = new ZipInputStream(Files.newInputStream(jar.toPath()))) {
+            var seen = false;
+            for (var entry = input.getNextEntry(); entry != null; entry = input.getNextEntry()) {
+                var service = entry.getName().startsWith("META-INF/services/");
+                if (seen && !service && layout == FuseLayout.STARTUP) {
+                    break;
+                }
+                if (service) {
+                    blackhole.consume(input.readAllBytes());
+                    seen = true;
+                }
+            }
+        }
+    }
+
+}
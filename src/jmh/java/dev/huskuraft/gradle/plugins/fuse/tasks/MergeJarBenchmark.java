@@ -0,0 +1,72 @@
+package dev.huskuraft.gradle.plugins.fuse.tasks;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fuses the synthetic jars end to end, from the input archives to the written jar
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class MergeJarBenchmark {
+
+    /**
+     * The shape of every input jar, see {@link SyntheticJars.Shape#parse(String)}
+     */
+    @Param({"200:100:2:8:4", "2000:1000:8:32:16"})
+    public String shape;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    @Param({"true", "false"})
+    public boolean copyRawEntries;
+
+    private File directory;
+    private List<Fuse> fuses;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("fuse-jmh").toFile();
+        fuses = SyntheticJars.generate(new File(directory, "input"), SyntheticJars.Shape.parse(shape), "forge", "fabric", "quilt");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        FileUtils.deleteQuietly(directory);
+    }
+
+    @Benchmark
+    public File mergeFuse() throws IOException {
+        var settings = SyntheticJars.settings(directory, fuses)
+            .parallelism(parallelism)
+            .compressionThreads(parallelism)
+            .copyRawEntries(copyRawEntries)
+            .build();
+        new MergeJarAction(settings).mergeFuse();
+        return settings.jarFile();
+    }
+
+}
@@ -0,0 +1,158 @@
+package dev.huskuraft.gradle.plugins.fuse.tasks;
+
+import dev.huskuraft.gradle.plugins.fuse.relocation.Relocator;
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.Manifest;
+
+/**
+ * Benchmarks each phase of a fuse on its own. The inputs of a phase are prepared once per trial,
+ * so entries read by an earlier iteration stay in memory and only the work of the phase itself is measured.
+ * Every invocation runs on a new action, so the recorded metrics do not pile up across invocations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class MergePhaseBenchmark {
+
+    /**
+     * The shape of every input jar, see {@link SyntheticJars.Shape#parse(String)}
+     */
+    @Param({"200:100:2:8:4", "2000:1000:8:32:16"})
+    public String shape;
+
+    private File directory;
+    private List<Fuse> fuses;
+    private List<Fuse> unrelocatedFuses;
+    private MergeJarAction action;
+    private List<FuseContents> contents;
+    private MergeJarAction.MergedContents merged;
+    private Relocator relocator;
+    private List<byte[]> classes;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("fuse-jmh").toFile();
+        fuses = SyntheticJars.generate(new File(directory, "input"), SyntheticJars.Shape.parse(shape), "forge", "fabric", "quilt");
+        unrelocatedFuses = fuses.stream()
+            .<Fuse>map(fuse -> new Fuse.Impl(fuse.root(), fuse.name(), List.of()))
+            .toList();
+        action = newAction(fuses);
+        contents = action.readFuses();
+        merged = action.mergeContents(contents);
+
+        relocator = new Relocator(List.of(fuses.get(0).relocations()));
+        classes = new ArrayList<>();
+        var unrelocatedAction = newAction(unrelocatedFuses);
+        var unrelocated = unrelocatedAction.readFuses();
+        try {
+            for (var entry : unrelocated.get(0).entries()) {
+                if (entry.name().endsWith(".class")) {
+                    classes.add(entry.content());
+                }
+            }
+        } finally {
+            unrelocatedAction.closeAll(unrelocated);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        merged.close();
+        action.closeAll(contents);
+        FileUtils.deleteQuietly(directory);
+    }
+
+    /**
+     * Remap every class of one input jar
+     */
+    @Benchmark
+    public void remap(Blackhole blackhole) {
+        for (var bytes : classes) {
+            blackhole.consume(relocator.relocateClass(bytes));
+        }
+    }
+
+    /**
+     * Open every input jar and list its entries, without relocations
+     */
+    @Benchmark
+    public void unpack(Blackhole blackhole) throws IOException {
+        var action = newAction(unrelocatedFuses);
+        var contents = action.readFuses();
+        blackhole.consume(contents);
+        action.closeAll(contents);
+    }
+
+    /**
+     * Open every input jar and relocate its classes
+     */
+    @Benchmark
+    public void unpackAndRemap(Blackhole blackhole) throws IOException {
+        var action = newAction(fuses);
+        var contents = action.readFuses();
+        blackhole.consume(contents);
+        action.closeAll(contents);
+    }
+
+    /**
+     * Deduplicate, merge and override the entries of every input jar. The merged entries are released
+     * after each invocation, so every invocation merges within the same memory budget.
+     */
+    @Benchmark
+    public void merge(Blackhole blackhole) throws IOException {
+        try (var merged = newAction(fuses).mergeContents(contents)) {
+            blackhole.consume(merged);
+        }
+    }
+
+    @Benchmark
+    public Manifest mergeManifest() {
+        var manifest = new Manifest();
+        for (var content : contents) {
+            MergeJarAction.mergeManifest(manifest, content.manifest());
+        }
+        return manifest;
+    }
+
+    /**
+     * Compress and write the merged entries
+     */
+    @Benchmark
+    public File pack() throws IOException {
+        var output = new File(directory, "output.jar");
+        newAction(fuses).writeJar(output, merged.manifest(), merged.entries());
+        return output;
+    }
+
+    private MergeJarAction newAction(List<Fuse> fuses) {
+        return new MergeJarAction(SyntheticJars.settings(directory, fuses)
+            .relocateConflicts(true)
+            .preserveFileTimestamps(false)
+            .build());
+    }
+
+}
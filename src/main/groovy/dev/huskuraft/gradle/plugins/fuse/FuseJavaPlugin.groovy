@@ -1,19 +1,33 @@
 package dev.huskuraft.gradle.plugins.fuse
 
+import dev.huskuraft.gradle.plugins.fuse.tasks.FuseCheck
 import dev.huskuraft.gradle.plugins.fuse.tasks.FuseJar
 import org.gradle.api.Plugin
 import org.gradle.api.Project
+import org.gradle.api.tasks.Delete
 
 class FuseJavaPlugin implements Plugin<Project> {
 
     public static final String FUSE_JAR_TASK_NAME = "fuseJar"
     public static final String FUSE_JAR_TASK_GROUP = "fuse"
+    public static final String CLEAN_FUSE_CACHE_TASK_NAME = "cleanFuseCache"
+    public static final String FUSE_CHECK_TASK_NAME = "fuseCheck"
 
     @Override
     void apply(Project project) {
-        project.getTasks().register(FUSE_JAR_TASK_NAME, FuseJar.class, task -> {
+        def fuseJar = project.getTasks().register(FUSE_JAR_TASK_NAME, FuseJar.class, task -> {
             task.setGroup(FUSE_JAR_TASK_GROUP)
         })
+        project.getTasks().register(CLEAN_FUSE_CACHE_TASK_NAME, Delete.class, task -> {
+            task.setGroup(FUSE_JAR_TASK_GROUP)
+            task.setDescription("Delete the relocated jars cached by " + FUSE_JAR_TASK_NAME)
+            task.delete(fuseJar.flatMap { it.cacheDirectory })
+        })
+        project.getTasks().register(FUSE_CHECK_TASK_NAME, FuseCheck.class, task -> {
+            task.setGroup(FUSE_JAR_TASK_GROUP)
+            // a plain provider, mapping the task provider would make the check depend on building the jar
+            task.from(project.provider { fuseJar.get() })
+        })
     }
 
 }
@@ -1,47 +1,108 @@
 package dev.huskuraft.gradle.plugins.fuse.config;
 
+import org.apache.commons.io.FilenameUtils;
 import org.gradle.api.Project;
+import org.gradle.api.file.RegularFile;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.MapProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
 import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.InputFile;
 import org.gradle.api.tasks.Internal;
-import org.gradle.api.tasks.Nested;
-
-import java.util.LinkedHashMap;
-import java.util.Map;
+import org.gradle.api.tasks.Optional;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.gradle.api.tasks.TaskProvider;
+import org.gradle.api.tasks.bundling.AbstractArchiveTask;
 
 public class FuseSource implements FuseSourceSpec {
 
-    String task;
+    private final Property<String> name;
+
+    private final Property<String> task;
+
+    private final RegularFileProperty archiveFile;
 
-    Map<String, String> relocations = new LinkedHashMap<>();
+    private final MapProperty<String, String> relocations;
 
-    private Project project;
+    private boolean configured;
+
+    public FuseSource(ObjectFactory objects) {
+        this.name = objects.property(String.class);
+        this.task = objects.property(String.class);
+        this.archiveFile = objects.fileProperty();
+        this.relocations = objects.mapProperty(String.class, String.class);
+        this.name.convention(archiveFile.map(file -> FilenameUtils.getBaseName(file.getAsFile().getName())));
+    }
 
+    /**
+     * The project is only used while configuring, the task is looked up lazily and never realized
+     * until the archive is actually needed
+     */
     @Override
     public void source(Project project) {
-        this.project = project;
+        this.name.set(project.getName());
+        this.archiveFile.convention(task.flatMap(taskName -> project.getTasks().named(taskName, AbstractArchiveTask.class).flatMap(AbstractArchiveTask::getArchiveFile)));
+        this.configured = true;
     }
 
     @Override
     public void task(String task) {
-        this.task = task;
+        this.task.set(task);
+    }
+
+    @Override
+    public void task(TaskProvider<? extends AbstractArchiveTask> task) {
+        this.task.set(task.getName());
+        archive(task.flatMap(AbstractArchiveTask::getArchiveFile));
+    }
+
+    @Override
+    public void archive(Provider<RegularFile> archive) {
+        this.archiveFile.set(archive);
+        this.configured = true;
     }
 
     public void relocate(String from, String to) {
         this.relocations.put(from, to);
     }
 
+    /**
+     * @return - The name of the source, used in logs and reports and as the package prefix of the conflict relocations,
+     * so it must be unique. Defaults to the project name, or the archive name
+     */
+    @Input
+    public Property<String> getName() {
+        return name;
+    }
+
     @Input
-    public String getTask() {
+    @Optional
+    public Property<String> getTask() {
         return task;
     }
 
-    @Nested
-    public Map<String, String> getRelocations() {
+    @Input
+    public MapProperty<String, String> getRelocations() {
         return relocations;
     }
 
+    /**
+     * @return - The archive produced by the source task, only its content matters to the fused jar
+     */
+    @InputFile
+    @PathSensitive(PathSensitivity.NONE)
+    public RegularFileProperty getArchiveFile() {
+        return archiveFile;
+    }
+
+    /**
+     * @return - True if a source project or an archive was given
+     */
     @Internal
-    public Project getProject() {
-        return project;
+    public boolean isConfigured() {
+        return configured;
     }
 }
@@ -1,6 +1,10 @@
 package dev.huskuraft.gradle.plugins.fuse.config;
 
 import org.gradle.api.Project;
+import org.gradle.api.file.RegularFile;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.TaskProvider;
+import org.gradle.api.tasks.bundling.AbstractArchiveTask;
 
 public interface FuseSourceSpec {
 
@@ -8,6 +12,20 @@ public interface FuseSourceSpec {
 
     void task(String task);
 
+    /**
+     * Fuse the archive of a task, without realizing the task while configuring
+     *
+     * @param task - The archive task. For example: project(':forge').tasks.named('remapJar')
+     */
+    void task(TaskProvider<? extends AbstractArchiveTask> task);
+
+    /**
+     * Fuse an archive produced by any provider, task dependencies carried by the provider are kept
+     *
+     * @param archive - The archive to fuse. For example: tasks.named('shadowJar').flatMap { it.archiveFile }
+     */
+    void archive(Provider<RegularFile> archive);
+
     /**
      * Add a package to relocate, instead of duplicating
      *
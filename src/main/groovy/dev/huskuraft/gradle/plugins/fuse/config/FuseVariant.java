@@ -0,0 +1,114 @@
+package dev.huskuraft.gradle.plugins.fuse.config;
+
+import org.gradle.api.Named;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.model.ObjectFactory;
+import org.gradle.api.provider.MapProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.OutputFile;
+
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * An additional jar written by the same fuse task, from the entries already merged for the main jar.
+ * A variant can leave entries out, use another compression level and relocate more packages.
+ */
+public class FuseVariant implements Named {
+
+    private final String name;
+
+    private final RegularFileProperty archiveFile;
+
+    private final Property<Integer> compressionLevel;
+
+    private final MapProperty<String, String> relocations;
+
+    private final Set<String> includes = new LinkedHashSet<>();
+
+    private final Set<String> excludes = new LinkedHashSet<>();
+
+    public FuseVariant(String name, ObjectFactory objects) {
+        this.name = name;
+        this.archiveFile = objects.fileProperty();
+        this.compressionLevel = objects.property(Integer.class);
+        this.relocations = objects.mapProperty(String.class, String.class);
+    }
+
+    /**
+     * @return - The name of the variant, appended to the name of the main jar by default. For example: slim
+     */
+    @Input
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return - The jar of the variant. Defaults to the main jar with the name of the variant appended
+     */
+    @OutputFile
+    public RegularFileProperty getArchiveFile() {
+        return archiveFile;
+    }
+
+    /**
+     * @return - The deflate level of the variant, from 0 (stored) to 9. Defaults to the level of the main jar
+     */
+    @Input
+    public Property<Integer> getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    @Input
+    public MapProperty<String, String> getRelocations() {
+        return relocations;
+    }
+
+    /**
+     * @return - The patterns of the entries kept in the variant, every entry is kept when empty
+     */
+    @Input
+    public Set<String> getIncludes() {
+        return includes;
+    }
+
+    /**
+     * @return - The patterns of the entries left out of the variant
+     */
+    @Input
+    public Set<String> getExcludes() {
+        return excludes;
+    }
+
+    /**
+     * Only keep the entries matching the patterns
+     *
+     * @param patterns - Ant style patterns. For example: com/example/**
+     */
+    public void include(String... patterns) {
+        includes.addAll(Arrays.asList(patterns));
+    }
+
+    /**
+     * Leave out the entries matching the patterns
+     *
+     * @param patterns - Ant style patterns. For example: META-INF/jars/**
+     */
+    public void exclude(String... patterns) {
+        excludes.addAll(Arrays.asList(patterns));
+    }
+
+    /**
+     * Relocate a package in this variant only, on top of the relocations of the fuses
+     *
+     * @param from - The original name of the package. For example: com.google.gson
+     * @param to   - The new name of the package. For example: slim.com.google.gson
+     */
+    public void relocate(String from, String to) {
+        relocations.put(from, to);
+    }
+
+}
@@ -1,15 +1,43 @@
 package dev.huskuraft.gradle.plugins.fuse.merger
 
+import org.apache.commons.io.output.CloseShieldOutputStream
 import org.gradle.api.Named
 import org.gradle.api.file.FileTreeElement
 import org.gradle.api.tasks.Internal
 
+/**
+ * Combines the files several fuses contribute to the same path. Serializable mergers are handed to the fuse worker,
+ * the others run in the task, which requires the none isolation.
+ */
 trait Merger implements Named {
 
     abstract boolean canMerge(FileTreeElement element)
 
     abstract void merge(MergerContext context)
 
+    /**
+     * Merge every contribution to a path at once. The default implementation feeds the contributions
+     * one by one to {@link #merge(MergerContext)}, override it to look at all of them together.
+     *
+     * @param path          - The path of the merged file
+     * @param contributions - The contents of the file in each fuse, in fuse order
+     * @param output        - Receives the merged file, closed by the caller
+     */
+    void merge(String path, List<MergerContribution> contributions, OutputStream output) {
+        for (def contribution : contributions) {
+            def input = new ByteArrayInputStream(contribution.content())
+            merge(new MergerContext(input, CloseShieldOutputStream.wrap(output)))
+            input.close()
+        }
+    }
+
+    /**
+     * @return - True if the merger can be serialized to the fuse worker
+     */
+    boolean canRunInWorker() {
+        return this instanceof Serializable
+    }
+
     @Internal
     String getName() {
         return getClass().simpleName
@@ -0,0 +1,16 @@
+package dev.huskuraft.gradle.plugins.fuse.merger;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The content a single fuse contributes to a merged file
+ *
+ * @param source  - The name of the fuse
+ * @param content - The uncompressed bytes of the file in that fuse
+ */
+public record MergerContribution(
+    @NotNull String source,
+    byte @NotNull [] content
+) {
+
+}
@@ -2,11 +2,16 @@ package dev.huskuraft.gradle.plugins.fuse.merger
 
 import org.gradle.api.file.FileTreeElement
 import org.gradle.api.specs.Spec
+import org.gradle.api.specs.Specs
 import org.gradle.api.tasks.Input
 import org.gradle.api.tasks.util.PatternFilterable
 import org.gradle.api.tasks.util.PatternSet
 
-class ServiceFileMerger implements Merger, PatternFilterable {
+import java.nio.charset.StandardCharsets
+
+class ServiceFileMerger implements Merger, PatternFilterable, Serializable {
+
+    private static final long serialVersionUID = 1L
 
     private static final String SERVICES_PATTERN = "**/META-INF/services/**"
 
@@ -15,16 +20,47 @@ class ServiceFileMerger implements Merger, PatternFilterable {
 
 //    private Map<String, ServiceStream> serviceEntries = [:].withDefault { new ServiceStream() }
 
-    private final PatternSet patternSet =
-            new PatternSet().include(SERVICES_PATTERN).exclude(GROOVY_EXTENSION_MODULE_DESCRIPTOR_PATTERN)
+    // Only the patterns are serialized to the fuse worker, the pattern set is rebuilt from them
+    private final Set<String> includes = new LinkedHashSet<>([SERVICES_PATTERN])
+    private final Set<String> excludes = new LinkedHashSet<>([GROOVY_EXTENSION_MODULE_DESCRIPTOR_PATTERN])
+
+    // Specs and closures cannot be serialized, a merger using them runs in the task, see canRunInWorker()
+    private transient List<Spec<FileTreeElement>> includeSpecs = []
+    private transient List<Spec<FileTreeElement>> excludeSpecs = []
+
+    private transient PatternSet patternSet
 
     void setPath(String path) {
-        patternSet.setIncludes(["${path}/**"])
+        setIncludes(["${path}/**".toString()])
     }
 
     @Override
     boolean canMerge(FileTreeElement element) {
-        return patternSet.asSpec.isSatisfiedBy(element)
+        return patterns().asSpec.isSatisfiedBy(element)
+    }
+
+    /**
+     * @return - False if include or exclude specs or closures are used, they cannot be serialized to the fuse worker
+     */
+    @Override
+    boolean canRunInWorker() {
+        return !includeSpecs && !excludeSpecs
+    }
+
+    private PatternSet patterns() {
+        if (patternSet == null) {
+            patternSet = new PatternSet().include(includes).exclude(excludes)
+            includeSpecs?.each { patternSet.include(it) }
+            excludeSpecs?.each { patternSet.exclude(it) }
+        }
+        return patternSet
+    }
+
+    private void writeObject(ObjectOutputStream output) throws IOException {
+        if (!canRunInWorker()) {
+            throw new NotSerializableException(name + " uses include or exclude specs or closures, which cannot be serialized, use patterns instead")
+        }
+        output.defaultWriteObject()
     }
 
     @Override
@@ -45,6 +81,27 @@ class ServiceFileMerger implements Merger, PatternFilterable {
 
     }
 
+    /**
+     * Concatenate the providers of every fuse, dropping comments, blank lines and providers already listed.
+     * The order of the first occurrence of each provider is kept.
+     */
+    @Override
+    void merge(String path, List<MergerContribution> contributions, OutputStream output) {
+        def providers = new LinkedHashSet<String>()
+        for (def contribution : contributions) {
+            new String(contribution.content(), StandardCharsets.UTF_8).eachLine { String line ->
+                def provider = line.contains('#') ? line.substring(0, line.indexOf('#')) : line
+                provider = provider.trim()
+                if (!provider.isEmpty()) {
+                    providers.add(provider)
+                }
+            }
+        }
+        for (def provider : providers) {
+            output.write((provider + '\n').getBytes(StandardCharsets.UTF_8))
+        }
+    }
+
 //    @Override
 //    boolean hasTransformedResource() {
 //        return serviceEntries.size() > 0
@@ -85,7 +142,8 @@ class ServiceFileMerger implements Merger, PatternFilterable {
      */
     @Override
     ServiceFileMerger include(String... includes) {
-        patternSet.include(includes)
+        this.includes.addAll(includes)
+        patternSet = null
         return this
     }
 
@@ -94,26 +152,31 @@ class ServiceFileMerger implements Merger, PatternFilterable {
      */
     @Override
     ServiceFileMerger include(Iterable<String> includes) {
-        patternSet.include(includes)
+        this.includes.addAll(includes)
+        patternSet = null
         return this
     }
 
     /**
      * {@inheritDoc}
+     * <p>
+     * Specs cannot be serialized, the merge then runs in the task and requires the none isolation.
      */
     @Override
     ServiceFileMerger include(Spec<FileTreeElement> includeSpec) {
-        patternSet.include(includeSpec)
+        includeSpecs.add(includeSpec)
+        patternSet = null
         return this
     }
 
     /**
      * {@inheritDoc}
+     * <p>
+     * Closures cannot be serialized, the merge then runs in the task and requires the none isolation.
      */
     @Override
     ServiceFileMerger include(Closure includeSpec) {
-        patternSet.include(includeSpec)
-        return this
+        return include(Specs.convertClosureToSpec(includeSpec))
     }
 
     /**
@@ -121,7 +184,8 @@ class ServiceFileMerger implements Merger, PatternFilterable {
      */
     @Override
     ServiceFileMerger exclude(String... excludes) {
-        patternSet.exclude(excludes)
+        this.excludes.addAll(excludes)
+        patternSet = null
         return this
     }
 
@@ -130,26 +194,31 @@ class ServiceFileMerger implements Merger, PatternFilterable {
      */
     @Override
     ServiceFileMerger exclude(Iterable<String> excludes) {
-        patternSet.exclude(excludes)
+        this.excludes.addAll(excludes)
+        patternSet = null
         return this
     }
 
     /**
      * {@inheritDoc}
+     * <p>
+     * Specs cannot be serialized, the merge then runs in the task and requires the none isolation.
      */
     @Override
     ServiceFileMerger exclude(Spec<FileTreeElement> excludeSpec) {
-        patternSet.exclude(excludeSpec)
+        excludeSpecs.add(excludeSpec)
+        patternSet = null
         return this
     }
 
     /**
      * {@inheritDoc}
+     * <p>
+     * Closures cannot be serialized, the merge then runs in the task and requires the none isolation.
      */
     @Override
     ServiceFileMerger exclude(Closure excludeSpec) {
-        patternSet.exclude(excludeSpec)
-        return this
+        return exclude(Specs.convertClosureToSpec(excludeSpec))
     }
 
     /**
@@ -158,7 +227,7 @@ class ServiceFileMerger implements Merger, PatternFilterable {
     @Override
     @Input
     Set<String> getIncludes() {
-        return patternSet.includes
+        return includes
     }
 
     /**
@@ -166,7 +235,9 @@ class ServiceFileMerger implements Merger, PatternFilterable {
      */
     @Override
     ServiceFileMerger setIncludes(Iterable<String> includes) {
-        patternSet.includes = includes
+        this.includes.clear()
+        this.includes.addAll(includes)
+        patternSet = null
         return this
     }
 
@@ -176,7 +247,7 @@ class ServiceFileMerger implements Merger, PatternFilterable {
     @Override
     @Input
     Set<String> getExcludes() {
-        return patternSet.excludes
+        return excludes
     }
 
     /**
@@ -184,7 +255,9 @@ class ServiceFileMerger implements Merger, PatternFilterable {
      */
     @Override
     ServiceFileMerger setExcludes(Iterable<String> excludes) {
-        patternSet.excludes = excludes
+        this.excludes.clear()
+        this.excludes.addAll(excludes)
+        patternSet = null
         return this
     }
 }
@@ -0,0 +1,91 @@
+package dev.huskuraft.gradle.plugins.fuse.relocation;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.objectweb.asm.commons.Remapper;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Remaps class references and string constants through one or more relocation stages.
+ * Each stage is applied to the result of the previous one, so several relocation lists
+ * can be combined into a single pass over a class.
+ */
+public class RelocatingRemapper extends Remapper {
+
+    private static final Pattern CLASS_PATTERN = Pattern.compile("(\\[*)?L(.+);");
+
+    private final List<List<Relocation>> stages;
+
+    public RelocatingRemapper(@NotNull List<List<Relocation>> stages) {
+        this.stages = stages.stream().filter(stage -> !stage.isEmpty()).toList();
+    }
+
+    /**
+     * @return - True if this remapper will never change anything
+     */
+    public boolean isEmpty() {
+        return stages.isEmpty();
+    }
+
+    @Override
+    public Object mapValue(Object value) {
+        if (value instanceof String string) {
+            var relocated = relocate(string, true);
+            if (relocated != null) {
+                return relocated;
+            }
+        }
+        return super.mapValue(value);
+    }
+
+    @Override
+    public String map(String internalName) {
+        var relocated = relocate(internalName, false);
+        if (relocated != null) {
+            return relocated;
+        }
+        return super.map(internalName);
+    }
+
+    /**
+     * Relocate the path of a resource inside the archive
+     *
+     * @param path - The path of the resource
+     * @return - The relocated path, or the input path if no relocation applies
+     */
+    public String mapPath(@NotNull String path) {
+        var relocated = relocate(path, false);
+        return relocated != null ? relocated : path;
+    }
+
+    @Nullable
+    private String relocate(String name, boolean isClass) {
+        var prefix = "";
+        var suffix = "";
+        var matcher = CLASS_PATTERN.matcher(name);
+        if (matcher.matches()) {
+            prefix = matcher.group(1) + "L";
+            suffix = ";";
+            name = matcher.group(2);
+        }
+
+        var relocated = false;
+        for (var stage : stages) {
+            for (var relocation : stage) {
+                if (isClass && relocation.canRelocateClass(name)) {
+                    name = relocation.relocateClass(name);
+                    relocated = true;
+                    break;
+                } else if (relocation.canRelocatePath(name)) {
+                    name = relocation.relocatePath(name);
+                    relocated = true;
+                    break;
+                }
+            }
+        }
+        return relocated ? prefix + name + suffix : null;
+    }
+
+}
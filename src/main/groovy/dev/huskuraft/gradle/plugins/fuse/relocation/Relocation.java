@@ -0,0 +1,72 @@
+package dev.huskuraft.gradle.plugins.fuse.relocation;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Serializable;
+
+/**
+ * A package relocation rule
+ *
+ * @param pattern          - The original name of the package. For example: com.google.gson
+ * @param relocatedPattern - The new name of the package. For example: forge.com.google.gson
+ */
+public record Relocation(
+    @NotNull String pattern,
+    @NotNull String relocatedPattern
+) implements Serializable {
+
+    public Relocation {
+        pattern = pattern.replace('/', '.');
+        relocatedPattern = relocatedPattern.replace('/', '.');
+    }
+
+    /**
+     * @return - The original package in internal form. For example: com/google/gson
+     */
+    public String pathPattern() {
+        return pattern.replace('.', '/');
+    }
+
+    /**
+     * @return - The new package in internal form. For example: forge/com/google/gson
+     */
+    public String relocatedPathPattern() {
+        return relocatedPattern.replace('.', '/');
+    }
+
+    /**
+     * Test to see if an internal name or archive path lives in the relocated package
+     *
+     * @param path - The internal name or path to test. For example: com/google/gson/Gson
+     * @return - True if the path can be relocated
+     */
+    public boolean canRelocatePath(@NotNull String path) {
+        return matches(path.startsWith("/") ? path.substring(1) : path, pathPattern(), '/');
+    }
+
+    /**
+     * Test to see if a binary class name lives in the relocated package
+     *
+     * @param clazz - The class name to test. For example: com.google.gson.Gson
+     * @return - True if the class can be relocated
+     */
+    public boolean canRelocateClass(@NotNull String clazz) {
+        return clazz.indexOf('/') == -1 && matches(clazz, pattern, '.');
+    }
+
+    public String relocatePath(@NotNull String path) {
+        if (path.startsWith("/")) {
+            return "/" + relocatedPathPattern() + path.substring(pathPattern().length() + 1);
+        }
+        return relocatedPathPattern() + path.substring(pathPattern().length());
+    }
+
+    public String relocateClass(@NotNull String clazz) {
+        return relocatedPattern + clazz.substring(pattern.length());
+    }
+
+    private static boolean matches(String name, String prefix, char separator) {
+        return name.startsWith(prefix) && (name.length() == prefix.length() || name.charAt(prefix.length()) == separator);
+    }
+
+}
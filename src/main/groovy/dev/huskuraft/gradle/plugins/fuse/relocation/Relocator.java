@@ -0,0 +1,116 @@
+package dev.huskuraft.gradle.plugins.fuse.relocation;
+
+import org.jetbrains.annotations.NotNull;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.commons.ClassRemapper;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Applies relocations to the entries of an archive, reading and writing every class exactly once
+ */
+public class Relocator {
+
+    private static final String CLASS_EXTENSION = ".class";
+
+    // Tag of a CONSTANT_Utf8 entry in the constant pool of a class file
+    private static final int CONSTANT_UTF8 = 1;
+
+    private final RelocatingRemapper remapper;
+    private final byte[][] prefixes;
+
+    /**
+     * @param stages - The relocation lists to apply, in order. For example the relocations of a fuse, then the global relocations
+     */
+    public Relocator(@NotNull List<List<Relocation>> stages) {
+        this.remapper = new RelocatingRemapper(stages);
+        this.prefixes = stages.stream()
+            .flatMap(List::stream)
+            .flatMap(relocation -> Stream.of(relocation.pathPattern(), relocation.pattern()))
+            .distinct()
+            .map(prefix -> prefix.getBytes(StandardCharsets.UTF_8))
+            .toArray(byte[][]::new);
+    }
+
+    /**
+     * @return - True if this relocator will never change anything
+     */
+    public boolean isEmpty() {
+        return remapper.isEmpty();
+    }
+
+    /**
+     * Get the relocated path of an archive entry
+     *
+     * @param name - The path of the entry
+     * @return - The relocated path
+     */
+    public String relocatePath(@NotNull String name) {
+        if (isEmpty()) return name;
+        return remapper.mapPath(name);
+    }
+
+    /**
+     * Test to see if an archive entry is a class file that should go through the remapper
+     *
+     * @param name - The path of the entry
+     * @return - True if the entry is a class
+     */
+    public boolean canRelocateClass(@NotNull String name) {
+        return !isEmpty() && name.endsWith(CLASS_EXTENSION);
+    }
+
+    /**
+     * Test to see if a class file mentions a relocated package. Only the UTF-8 entries of the constant pool are scanned,
+     * every class name, descriptor and string constant the remapper could change is stored there.
+     * A class that does not mention any relocated package is left unchanged by {@link #relocateClass(byte[])}.
+     *
+     * @param bytes - The class file
+     * @return - True if the class may be changed by the relocations
+     */
+    public boolean references(byte @NotNull [] bytes) {
+        if (isEmpty()) return false;
+        var reader = new ClassReader(bytes);
+        for (var i = 1; i < reader.getItemCount(); i++) {
+            var offset = reader.getItem(i);
+            if (offset == 0 || bytes[offset - 1] != CONSTANT_UTF8) {
+                continue;
+            }
+            if (containsPrefix(bytes, offset + 2, reader.readUnsignedShort(offset))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remap all the references of a class in a single pass
+     *
+     * @param bytes - The class file
+     * @return - The remapped class file
+     */
+    public byte[] relocateClass(byte @NotNull [] bytes) {
+        var reader = new ClassReader(bytes);
+        var writer = new ClassWriter(0);
+        reader.accept(new ClassRemapper(writer, remapper), 0);
+        return writer.toByteArray();
+    }
+
+    private boolean containsPrefix(byte[] bytes, int start, int length) {
+        var end = start + length;
+        for (var prefix : prefixes) {
+            var last = end - prefix.length;
+            for (var i = start; i <= last; i++) {
+                if (bytes[i] == prefix[0] && Arrays.equals(bytes, i, i + prefix.length, prefix, 0, prefix.length)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,161 @@
+package dev.huskuraft.gradle.plugins.fuse.tasks;
+
+import dev.huskuraft.gradle.plugins.fuse.relocation.Relocation;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Finds the libraries whose classes differ between fuses, usually the same library shaded in different versions,
+ * and relocates them per fuse so every copy is kept. Classes are compared by size and CRC-32, taken from the
+ * central directory for unchanged entries, so no class is read to find the conflicts.
+ * A conflict relocates the whole library in every fuse that contains it, identical classes included,
+ * so no fuse ends up using a class of another fuse's copy. Libraries that are identical in every fuse are left alone,
+ * they are collapsed to one copy when merging.
+ */
+final class ConflictRelocations {
+
+    // The depth of the root package of a library, the group and the name of the library. For example: com.google.gson
+    private static final int LIBRARY_DEPTH = 3;
+
+    private ConflictRelocations() {
+    }
+
+    /**
+     * Plan the relocations of the conflicting libraries
+     *
+     * @param contents        - The contents of every fuse, in the declared order
+     * @param ignoredPackages - The packages that are never relocated, with their sub packages. For example: com.google.gson
+     * @return - The relocations of every fuse that contains a conflicting library, by fuse name
+     */
+    static Map<String, List<Relocation>> find(@NotNull List<FuseContents> contents, @NotNull List<String> ignoredPackages) throws IOException {
+        var classes = new HashMap<String, Map<String, String>>();
+        var packages = new HashMap<String, Set<String>>();
+        for (var content : contents) {
+            var fusePackages = packages.computeIfAbsent(content.fuse().name(), name -> new HashSet<>());
+            for (var entry : content.entries()) {
+                if (EntryKind.ofName(entry.name()) != EntryKind.CLASS || entry.name().startsWith("META-INF/") || entry.name().indexOf('/') == -1) {
+                    continue;
+                }
+                classes.computeIfAbsent(entry.name(), name -> new LinkedHashMap<>())
+                    .put(content.fuse().name(), entry.size() + ":" + entry.crc());
+                fusePackages.add(packageOf(entry.name()));
+            }
+        }
+
+        var roots = new TreeSet<String>();
+        for (var clazz : classes.entrySet()) {
+            var hashes = clazz.getValue();
+            if (hashes.size() < 2 || new LinkedHashSet<>(hashes.values()).size() < 2) {
+                continue;
+            }
+            var pkg = packageOf(clazz.getKey());
+            if (isIgnored(pkg, ignoredPackages)) {
+                continue;
+            }
+            roots.add(libraryRoot(pkg, ignoredPackages));
+        }
+
+        var prefixes = prefixes(contents, packages, roots);
+        var relocations = new LinkedHashMap<String, List<Relocation>>();
+        for (var content : contents) {
+            var source = content.fuse().name();
+            var fusePackages = packages.get(source);
+            // a relocation also moves the sub packages, so a root inside a relocated root is already covered
+            var fuseRelocations = new ArrayList<Relocation>();
+            String parent = null;
+            for (var root : roots) {
+                if (parent != null && isInside(root, parent) || fusePackages.stream().noneMatch(pkg -> isInside(pkg, root))) {
+                    continue;
+                }
+                parent = root;
+                fuseRelocations.add(new Relocation(root, prefixes.get(source) + "." + root));
+            }
+            if (!fuseRelocations.isEmpty()) {
+                relocations.put(source, fuseRelocations);
+            }
+        }
+        return relocations;
+    }
+
+    /**
+     * Find the root package of the library a package belongs to, without moving an ignored package along with it
+     */
+    private static String libraryRoot(String pkg, List<String> ignoredPackages) {
+        var segments = pkg.split("\\.");
+        for (var depth = Math.min(LIBRARY_DEPTH, segments.length); depth < segments.length; depth++) {
+            var root = String.join(".", Arrays.copyOf(segments, depth));
+            if (ignoredPackages.stream().noneMatch(ignored -> isInside(ignored.replace('/', '.'), root))) {
+                return root;
+            }
+        }
+        return pkg;
+    }
+
+    /**
+     * Give every fuse a unique package prefix. The prefix comes from the name of the fuse, and the index of the fuse
+     * is appended when it is already the prefix of another fuse, or when a relocated library would land in a package
+     * some fuse already contains.
+     */
+    private static Map<String, String> prefixes(List<FuseContents> contents, Map<String, Set<String>> packages, Set<String> roots) {
+        var prefixes = new HashMap<String, String>();
+        var used = new HashSet<String>();
+        for (var index = 0; index < contents.size(); index++) {
+            var source = contents.get(index).fuse().name();
+            var base = prefix(source);
+            var prefix = base;
+            for (var attempt = 0; used.contains(prefix) || collides(packages, roots, prefix); attempt++) {
+                prefix = base + "_" + (index + attempt);
+            }
+            used.add(prefix);
+            prefixes.put(source, prefix);
+        }
+        return prefixes;
+    }
+
+    private static boolean collides(Map<String, Set<String>> packages, Set<String> roots, String prefix) {
+        return roots.stream().anyMatch(root -> packages.values().stream()
+            .flatMap(Set::stream)
+            .anyMatch(pkg -> isInside(pkg, prefix + "." + root)));
+    }
+
+    private static boolean isIgnored(String pkg, List<String> ignoredPackages) {
+        for (var ignored : ignoredPackages) {
+            if (isInside(pkg, ignored.replace('/', '.'))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return - True if the package is the parent package or one of its sub packages
+     */
+    private static boolean isInside(String pkg, String parent) {
+        return pkg.equals(parent) || pkg.startsWith(parent + ".");
+    }
+
+    private static String packageOf(String path) {
+        return path.substring(0, path.lastIndexOf('/')).replace('/', '.');
+    }
+
+    /**
+     * Turn the name of a fuse into a valid package name. For example: "NeoForge 1.20" becomes "neoforge_1_20"
+     */
+    private static String prefix(String source) {
+        var prefix = source.toLowerCase(Locale.ROOT).replaceAll("[^a-z0-9_]", "_");
+        return prefix.isEmpty() || Character.isDigit(prefix.charAt(0)) ? "_" + prefix : prefix;
+    }
+
+}
@@ -0,0 +1,108 @@
+package dev.huskuraft.gradle.plugins.fuse.tasks;
+
+import dev.huskuraft.gradle.plugins.fuse.utils.FileChecks;
+import dev.huskuraft.gradle.plugins.fuse.utils.FileTools;
+import org.apache.commons.io.FilenameUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Set;
+import java.util.jar.JarFile;
+
+/**
+ * The kind of an archive entry. Most kinds are known from the path alone,
+ * the others are told apart from the first bytes of the entry.
+ */
+public enum EntryKind {
+    DIRECTORY,
+    MANIFEST,
+    CLASS,
+    SERVICE,
+    EMBEDDED_JAR,
+    LOADER_METADATA,
+    MIXIN_CONFIG,
+    REFMAP,
+    ACCESS_WIDENER,
+    TEXT,
+    BINARY;
+
+    // Number of bytes read from the start of an entry to classify it
+    static final int SNIFF_SIZE = 4096;
+
+    private static final String SERVICES_DIR = "META-INF/services/";
+
+    private static final Set<String> LOADER_METADATA_FILES = Set.of(
+        "fabric.mod.json",
+        "quilt.mod.json",
+        "META-INF/mods.toml",
+        "META-INF/neoforge.mods.toml",
+        "mcmod.info",
+        "pack.mcmeta"
+    );
+
+    // Extensions of files that are never text, so their content does not need to be read
+    private static final Set<String> BINARY_EXTENSIONS = Set.of(
+        "png", "jpg", "jpeg", "gif", "ogg", "wav", "nbt", "zip", "ttf", "otf", "bin", "dat", "so", "dll", "dylib"
+    );
+
+    // Extensions of formats that are already compressed, deflating them again gains almost nothing
+    private static final Set<String> COMPRESSED_EXTENSIONS = Set.of(
+        "png", "jpg", "jpeg", "gif", "webp", "ogg", "mp3", "zip", "jar", "gz", "xz"
+    );
+
+    /**
+     * Classify an entry from its path alone
+     *
+     * @param name - The path of the entry inside the archive
+     * @return - The kind of the entry, or null if its content is needed to tell
+     */
+    @Nullable
+    public static EntryKind ofName(@NotNull String name) {
+        if (name.endsWith("/")) return DIRECTORY;
+        if (name.equalsIgnoreCase(JarFile.MANIFEST_NAME)) return MANIFEST;
+        if (name.endsWith(".class")) return CLASS;
+        if (name.startsWith(SERVICES_DIR) && name.length() > SERVICES_DIR.length()) return SERVICE;
+        if (FileTools.isEmbeddedJar(name)) return EMBEDDED_JAR;
+        if (LOADER_METADATA_FILES.contains(name)) return LOADER_METADATA;
+
+        var extension = FilenameUtils.getExtension(name).toLowerCase(Locale.ROOT);
+        if (extension.equals("accesswidener") || extension.equals("classtweaker")) return ACCESS_WIDENER;
+        if (extension.equals("jar") || BINARY_EXTENSIONS.contains(extension)) return BINARY;
+        return null;
+    }
+
+    /**
+     * Test to see if an entry is stored in a format that is already compressed
+     *
+     * @param name - The path of the entry inside the archive
+     * @return - True if deflating the entry would barely shrink it
+     */
+    public static boolean isCompressedFormat(@NotNull String name) {
+        return COMPRESSED_EXTENSIONS.contains(FilenameUtils.getExtension(name).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Classify an entry from its path and the first bytes of its content
+     *
+     * @param name - The path of the entry inside the archive
+     * @param head - The first bytes of the entry, at least {@link #SNIFF_SIZE} bytes if the entry is larger
+     * @return - The kind of the entry
+     */
+    @NotNull
+    public static EntryKind of(@NotNull String name, byte @NotNull [] head) {
+        var kind = ofName(name);
+        if (kind != null) return kind;
+        if (FileChecks.isBinary(head)) return BINARY;
+
+        var text = new String(head, 0, Math.min(head.length, SNIFF_SIZE), StandardCharsets.UTF_8);
+        if (FilenameUtils.getExtension(name).equalsIgnoreCase("json")) {
+            if (text.contains("\"package\"")) return MIXIN_CONFIG;
+            if (text.contains("\"mappings\"") || text.contains("\"data\"")) return REFMAP;
+        }
+        if (text.startsWith("accessWidener") || text.startsWith("classTweaker")) return ACCESS_WIDENER;
+        return TEXT;
+    }
+
+}
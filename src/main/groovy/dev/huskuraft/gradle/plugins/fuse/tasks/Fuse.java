@@ -1,12 +1,13 @@
 package dev.huskuraft.gradle.plugins.fuse.tasks;
 
-import com.hypherionmc.jarrelocator.Relocation;
+import dev.huskuraft.gradle.plugins.fuse.relocation.Relocation;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
+import java.io.Serializable;
 import java.util.List;
 
-public interface Fuse {
+public interface Fuse extends Serializable {
 
     File root();
 
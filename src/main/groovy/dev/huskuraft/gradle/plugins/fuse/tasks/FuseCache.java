@@ -0,0 +1,210 @@
+package dev.huskuraft.gradle.plugins.fuse.tasks;
+
+import dev.huskuraft.gradle.plugins.fuse.relocation.Relocation;
+import dev.huskuraft.gradle.plugins.fuse.utils.FileTools;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+/**
+ * A content addressed cache of relocated input jars. Entries are keyed by the hash of the input archive,
+ * its relocations, the settings the relocated jar is written with and the plugin version,
+ * so an unchanged fuse reuses the jar relocated by a previous build and the output is the same with or without the cache.
+ */
+class FuseCache {
+
+    private static final String CACHE_EXTENSION = ".jar";
+    private static final long MAP_SIZE = 64L * 1024 * 1024;
+    private static final String RELOCATED_COMMENT = "fuse:relocated";
+
+    private final File directory;
+    private final long maxSize;
+    private final String version;
+
+    /**
+     * @param directory - The directory the relocated jars are stored in
+     * @param maxSize   - The maximum size of the cache in bytes, the least recently used jars are evicted beyond it
+     * @param version   - The version of the plugin, relocated jars of other versions are never reused
+     */
+    FuseCache(@NotNull File directory, long maxSize, @NotNull String version) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.version = version;
+    }
+
+    /**
+     * Compute the cache key of an input archive
+     *
+     * @param archive          - The input archive
+     * @param stages           - The relocations applied to the archive, in order
+     * @param embedded         - True if the embedded jars of the archive are relocated too
+     * @param compressionLevel - The deflate level the relocated entries are written with, they are copied raw to the fused jar
+     * @return - The key of the relocated archive
+     * @throws IOException - Thrown when the archive cannot be read
+     */
+    String key(@NotNull File archive, @NotNull List<List<Relocation>> stages, boolean embedded, int compressionLevel) throws IOException {
+        var digest = newDigest();
+        digest.update(version.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) (embedded ? 1 : 0));
+        digest.update((byte) compressionLevel);
+        for (var stage : stages) {
+            digest.update((byte) 0);
+            for (var relocation : stage) {
+                digest.update((relocation.pattern() + "=" + relocation.relocatedPattern() + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        try (var channel = FileChannel.open(archive.toPath(), StandardOpenOption.READ)) {
+            var size = channel.size();
+            for (var position = 0L; position < size; position += MAP_SIZE) {
+                digest.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_SIZE, size - position)));
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * Get a cached archive, marking it as recently used
+     *
+     * @param key - The cache key
+     * @return - The cached archive, or null if it is not cached
+     */
+    @Nullable
+    File get(@NotNull String key) {
+        var file = getCacheFile(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * Store an archive in the cache. The archive is written to a temporary file first,
+     * so a failed or concurrent write never leaves a broken entry behind.
+     *
+     * @param key    - The cache key
+     * @param writer - Writes the archive to the given file
+     * @return - The cached archive
+     * @throws IOException - Thrown when the archive cannot be written
+     */
+    File put(@NotNull String key, @NotNull CacheWriter writer) throws IOException {
+        var file = getCacheFile(key);
+        var temp = File.createTempFile(key, ".tmp", FileTools.getOrCreate(directory));
+        try {
+            writer.write(temp);
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            FileUtils.deleteQuietly(temp);
+        }
+        return file;
+    }
+
+    /**
+     * Delete the least recently used archives until the cache fits its maximum size
+     */
+    void evict() {
+        var files = directory.listFiles((dir, name) -> name.endsWith(CACHE_EXTENSION));
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified).reversed());
+
+        var size = 0L;
+        for (var file : files) {
+            size += file.length();
+            if (size > maxSize) {
+                FileUtils.deleteQuietly(file);
+            }
+        }
+    }
+
+    private File getCacheFile(String key) {
+        return new File(directory, key + CACHE_EXTENSION);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Write a relocated archive. Unchanged entries are copied raw from the input archive, relocated entries are stored
+     * uncompressed and marked, so the fused jar compresses them with its own settings, see {@link #isRelocated(ZipArchiveEntry)}
+     *
+     * @param file     - The archive to write
+     * @param manifest - The manifest entry, or null if the archive has none
+     * @param entries  - The entries of the archive
+     */
+    static void write(@NotNull File file, @Nullable FuseEntry manifest, @NotNull Collection<FuseEntry> entries) throws IOException {
+        try (var output = new ZipArchiveOutputStream(file)) {
+            if (manifest != null) {
+                writeRelocated(output, manifest);
+            }
+            for (var entry : entries) {
+                if (entry.isRaw()) {
+                    FuseJarWriter.copyRaw(output, entry, entry.time());
+                } else {
+                    writeRelocated(output, entry);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param entry - An entry of a cached archive
+     * @return - True if the entry was changed by the relocations, it must not be copied raw
+     */
+    static boolean isRelocated(@NotNull ZipArchiveEntry entry) {
+        return RELOCATED_COMMENT.equals(entry.getComment());
+    }
+
+    private static void writeRelocated(ZipArchiveOutputStream output, FuseEntry entry) throws IOException {
+        var zipEntry = new ZipArchiveEntry(entry.name());
+        zipEntry.setTime(entry.time());
+        zipEntry.setComment(RELOCATED_COMMENT);
+        zipEntry.setMethod(ZipEntry.STORED);
+        if (entry.isDirectory()) {
+            zipEntry.setSize(0);
+            zipEntry.setCrc(0);
+            output.putArchiveEntry(zipEntry);
+            output.closeArchiveEntry();
+            return;
+        }
+        var content = entry.content();
+        var crc = new CRC32();
+        crc.update(content);
+        zipEntry.setSize(content.length);
+        zipEntry.setCrc(crc.getValue());
+        output.putArchiveEntry(zipEntry);
+        output.write(content);
+        output.closeArchiveEntry();
+    }
+
+    @FunctionalInterface
+    interface CacheWriter {
+        void write(File file) throws IOException;
+    }
+
+}
@@ -0,0 +1,96 @@
+package dev.huskuraft.gradle.plugins.fuse.tasks;
+
+import dev.huskuraft.gradle.plugins.fuse.config.FuseSource;
+import dev.huskuraft.gradle.plugins.fuse.merger.Merger;
+import org.gradle.api.DefaultTask;
+import org.gradle.api.GradleException;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.Nested;
+import org.gradle.api.tasks.OutputFile;
+import org.gradle.api.tasks.TaskAction;
+import org.gradle.work.DisableCachingByDefault;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Plans a fuse without building the jar, to find conflicting entries early. Only the central directories
+ * of the fused archives are read, see {@link FusePlan}.
+ */
+@DisableCachingByDefault(because = "Reading the central directories is faster than caching the plan")
+public abstract class FuseCheck extends DefaultTask {
+
+    public static final String FUSE_CHECK_DESCRIPTION = "Plan the fuse of the jars and report conflicting entries, without building the jar";
+
+    public FuseCheck() {
+        setDescription(FUSE_CHECK_DESCRIPTION);
+        getRelocateConflicts().convention(false);
+        getFailOnConflict().convention(false);
+        getReportFile().convention(getProject().getLayout().getBuildDirectory().file(FuseJar.FUSE_REPORTS_DIRECTORY + "/" + getName() + ".txt"));
+    }
+
+    /**
+     * Check the same sources, mergers and relocations as a fuse jar task. The task is only queried once the values
+     * are needed, so it is not realized while configuring. The check never needs the fused jar, so the provider
+     * should not carry a dependency on the task.
+     *
+     * @param fuseJar - The task to check
+     */
+    public void from(Provider<FuseJar> fuseJar) {
+        getFuseConfigurations().set(fuseJar.map(FuseJar::getFuseConfigurations));
+        getDuplicateRelocations().set(fuseJar.map(FuseJar::getDuplicateRelocations));
+        getMergers().set(fuseJar.map(FuseJar::getMergers));
+        getRelocateConflicts().set(fuseJar.flatMap(FuseJar::getRelocateConflicts));
+    }
+
+    @Nested
+    public abstract ListProperty<FuseSource> getFuseConfigurations();
+
+    @Input
+    public abstract ListProperty<String> getDuplicateRelocations();
+
+    @Nested
+    public abstract ListProperty<Merger> getMergers();
+
+    @Input
+    public abstract Property<Boolean> getRelocateConflicts();
+
+    /**
+     * Fail the build when several fuses contribute different content to the same path and no merger combines them.
+     * Defaults to false, conflicts are only reported.
+     */
+    @Input
+    public abstract Property<Boolean> getFailOnConflict();
+
+    /**
+     * The plan of every path of the fused jar. Defaults to build/reports/fuse/{task name}.txt.
+     */
+    @OutputFile
+    public abstract RegularFileProperty getReportFile();
+
+    @TaskAction
+    public void check() {
+        var fuses = FuseJar.getFuses(getFuseConfigurations().get());
+        FusePlan plan;
+        try {
+            plan = FusePlan.of(fuses, getMergers().get(), getDuplicateRelocations().get(), getRelocateConflicts().get());
+            plan.write(getReportFile().get().getAsFile());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        var conflicts = plan.getConflicts();
+        for (var conflict : conflicts) {
+            getLogger().warn("Conflicting entry {} in {}, keeping the one from {}", conflict.path(), String.join(", ", conflict.sources()), conflict.sources().get(conflict.sources().size() - 1));
+        }
+        getLogger().lifecycle("Planned {} entries from {} sources, {} conflicts. See {}", plan.getEntries().size(), fuses.size(), conflicts.size(), getReportFile().get().getAsFile());
+        if (!conflicts.isEmpty() && getFailOnConflict().get()) {
+            throw new GradleException("Found " + conflicts.size() + " conflicting entries, see " + getReportFile().get().getAsFile());
+        }
+    }
+
+}
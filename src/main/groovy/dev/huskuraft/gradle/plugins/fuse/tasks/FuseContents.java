@@ -0,0 +1,32 @@
+package dev.huskuraft.gradle.plugins.fuse.tasks;
+
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.jar.Manifest;
+
+/**
+ * Everything read from a single fuse, ready to be merged. The input archive stays open
+ * until the contents are closed, so unchanged entries can be copied straight from it.
+ *
+ * @param fuse     - The fuse the entries were read from
+ * @param archive  - The opened input archive of the fuse
+ * @param manifest - The manifest of the fuse, empty if it has none
+ * @param entries  - The remaining entries, in archive order
+ */
+record FuseContents(
+    @NotNull Fuse fuse,
+    @NotNull ZipFile archive,
+    @NotNull Manifest manifest,
+    @NotNull List<FuseEntry> entries
+) implements Closeable {
+
+    @Override
+    public void close() throws IOException {
+        archive.close();
+    }
+
+}
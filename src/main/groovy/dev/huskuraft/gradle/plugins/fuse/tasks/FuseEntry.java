@@ -0,0 +1,262 @@
+package dev.huskuraft.gradle.plugins.fuse.tasks;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+/**
+ * A single archive entry while fusing. An entry either holds new content in memory or in a spilled file,
+ * or points at an unchanged entry of an input archive whose bytes are only read when needed.
+ */
+final class FuseEntry {
+
+    private final String name;
+    private final long time;
+    private final ZipFile archive;
+    private final ZipArchiveEntry source;
+    private final File file;
+    private final long fileSize;
+    private final MemoryBudget budget;
+    private final boolean changed;
+    private byte[] content;
+    private long reserved;
+    private long crc = -1;
+    private EntryKind kind;
+
+    private FuseEntry(@NotNull String name, long time, @Nullable ZipFile archive, @Nullable ZipArchiveEntry source, @Nullable File file, long fileSize, @Nullable MemoryBudget budget, boolean changed, byte @Nullable [] content) {
+        this.name = name;
+        this.time = time;
+        this.archive = archive;
+        this.source = source;
+        this.file = file;
+        this.fileSize = fileSize;
+        this.budget = budget;
+        this.changed = changed;
+        this.content = content;
+    }
+
+    /**
+     * Create an entry with new content
+     *
+     * @param name    - The path of the entry inside the archive, directories end with a "/"
+     * @param content - The uncompressed bytes of the entry
+     * @param time    - The last modified time of the entry
+     */
+    static FuseEntry of(@NotNull String name, byte @NotNull [] content, long time) {
+        return new FuseEntry(name, time, null, null, null, -1, null, false, content);
+    }
+
+    /**
+     * Create an entry that keeps the bytes of an input archive entry
+     *
+     * @param name    - The path of the entry inside the output, may differ from the source when relocated
+     * @param archive - The input archive, must stay open until the entry is written
+     * @param source  - The entry inside the input archive
+     */
+    static FuseEntry of(@NotNull String name, @NotNull ZipFile archive, @NotNull ZipArchiveEntry source) {
+        return of(name, archive, source, null);
+    }
+
+    /**
+     * Create an entry that keeps the bytes of an input archive entry, its content is only kept in memory once read
+     * if the budget allows it
+     *
+     * @param name    - The path of the entry inside the output, may differ from the source when relocated
+     * @param archive - The input archive, must stay open until the entry is written
+     * @param source  - The entry inside the input archive
+     * @param budget  - The memory budget of the fuse, or null to always keep the content once read
+     */
+    static FuseEntry of(@NotNull String name, @NotNull ZipFile archive, @NotNull ZipArchiveEntry source, @Nullable MemoryBudget budget) {
+        return new FuseEntry(name, source.getTime(), archive, source, null, -1, budget, false, null);
+    }
+
+    /**
+     * Create an entry whose bytes in the input archive were already changed by a fuse, such as a relocated class
+     * of a cached archive. Its content is read from the archive but it is never copied raw, so it is compressed
+     * with the settings of the jar it is written to.
+     *
+     * @param name    - The path of the entry inside the output
+     * @param archive - The input archive, must stay open until the entry is written
+     * @param source  - The entry inside the input archive
+     * @param budget  - The memory budget of the fuse, or null to always keep the content once read
+     */
+    static FuseEntry changed(@NotNull String name, @NotNull ZipFile archive, @NotNull ZipArchiveEntry source, @Nullable MemoryBudget budget) {
+        return new FuseEntry(name, source.getTime(), archive, source, null, -1, budget, true, null);
+    }
+
+    /**
+     * Create an entry whose content was spilled to a file, the content is read from the file every time it is needed
+     *
+     * @param name   - The path of the entry inside the archive
+     * @param file   - The file holding the uncompressed bytes, must exist until the entry is written
+     * @param size   - The size of the file
+     * @param time   - The last modified time of the entry
+     * @param budget - The memory budget the content did not fit in
+     */
+    static FuseEntry of(@NotNull String name, @NotNull File file, long size, long time, @NotNull MemoryBudget budget) {
+        return new FuseEntry(name, time, null, null, file, size, budget, false, null);
+    }
+
+    /**
+     * @param name - The new path of the entry
+     * @return - The same entry under another path, or this entry if the path is unchanged
+     */
+    FuseEntry renamed(@NotNull String name) {
+        return name.equals(this.name) ? this : new FuseEntry(name, time, archive, source, file, fileSize, budget, changed, content);
+    }
+
+    String name() {
+        return name;
+    }
+
+    long time() {
+        return time;
+    }
+
+    boolean isDirectory() {
+        return name.endsWith("/");
+    }
+
+    /**
+     * @return - The kind of the entry, from its path or, when the path is not enough, from its first bytes
+     */
+    EntryKind kind() throws IOException {
+        if (kind == null) {
+            var byName = EntryKind.ofName(name);
+            kind = byName != null ? byName : EntryKind.of(name, head());
+        }
+        return kind;
+    }
+
+    /**
+     * @return - The uncompressed size of the entry
+     */
+    long size() {
+        var cached = cachedContent();
+        if (cached != null) return cached.length;
+        return file != null ? fileSize : source.getSize();
+    }
+
+    /**
+     * @return - The CRC-32 of the uncompressed bytes, taken from the central directory for unchanged entries
+     */
+    long crc() throws IOException {
+        if (crc == -1) {
+            if (source != null && source.getCrc() != -1) {
+                crc = source.getCrc();
+            } else {
+                var checksum = new CRC32();
+                checksum.update(content());
+                crc = checksum.getValue();
+            }
+        }
+        return crc;
+    }
+
+    /**
+     * Test to see if two entries have the same bytes, only reading them when their size and CRC-32 match
+     *
+     * @param other - The entry to compare with
+     * @return - True if both entries have the same uncompressed bytes
+     */
+    boolean hasSameContent(@NotNull FuseEntry other) throws IOException {
+        return size() == other.size()
+            && crc() == other.crc()
+            && Arrays.equals(content(), other.content());
+    }
+
+    /**
+     * @return - The uncompressed bytes of the entry, read from the input archive or the spilled file on first access.
+     * They are kept for later accesses unless the memory budget is exhausted.
+     */
+    byte[] content() throws IOException {
+        var cached = cachedContent();
+        if (cached != null) {
+            return cached;
+        }
+        byte[] bytes;
+        try (var input = open()) {
+            bytes = input.readAllBytes();
+        }
+        if (file == null) {
+            synchronized (this) {
+                if (content == null && (budget == null || budget.reserve(bytes.length))) {
+                    content = bytes;
+                    reserved = budget == null ? 0 : bytes.length;
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Drop the content read from the input archive and release its memory, it is read again if needed.
+     * New content has nowhere else to be read from, it is kept.
+     */
+    synchronized void evict() {
+        if (archive == null || content == null) {
+            return;
+        }
+        content = null;
+        if (budget != null) {
+            budget.release(reserved);
+        }
+        reserved = 0;
+    }
+
+    private synchronized byte[] cachedContent() {
+        return content;
+    }
+
+    /**
+     * Read the first bytes of the entry, without keeping the whole content in memory
+     */
+    private byte[] head() throws IOException {
+        var cached = cachedContent();
+        if (cached != null) {
+            return cached;
+        }
+        try (var input = open()) {
+            return input.readNBytes(EntryKind.SNIFF_SIZE);
+        }
+    }
+
+    private InputStream open() throws IOException {
+        return file != null ? Files.newInputStream(file.toPath()) : archive.getInputStream(source);
+    }
+
+    /**
+     * @return - True if the compressed bytes of the input archive can be copied as they are
+     */
+    boolean isRaw() {
+        return source != null
+            && !changed
+            && !source.isDirectory()
+            && (source.getMethod() == ZipEntry.STORED || source.getMethod() == ZipEntry.DEFLATED)
+            && archive.canReadEntryData(source);
+    }
+
+    /**
+     * @return - The entry inside the input archive, only present for unchanged entries
+     */
+    ZipArchiveEntry source() {
+        return source;
+    }
+
+    /**
+     * @return - The compressed bytes of the input archive entry
+     */
+    InputStream rawContent() throws IOException {
+        return archive.getRawInputStream(source);
+    }
+
+}
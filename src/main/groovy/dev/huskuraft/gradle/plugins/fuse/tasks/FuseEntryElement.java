@@ -0,0 +1,105 @@
+package dev.huskuraft.gradle.plugins.fuse.tasks;
+
+import org.gradle.api.file.FilePermissions;
+import org.gradle.api.file.FileTreeElement;
+import org.gradle.api.file.RelativePath;
+import org.gradle.api.internal.file.DefaultFilePermissions;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+
+/**
+ * Exposes an in-memory {@link FuseEntry} as a {@link FileTreeElement}, so mergers can match it with patterns
+ */
+class FuseEntryElement implements FileTreeElement {
+
+    private final FuseEntry entry;
+    private final RelativePath relativePath;
+
+    FuseEntryElement(@NotNull FuseEntry entry) {
+        this.entry = entry;
+        this.relativePath = RelativePath.parse(!entry.isDirectory(), entry.isDirectory() ? entry.name().substring(0, entry.name().length() - 1) : entry.name());
+    }
+
+    @Override
+    public File getFile() {
+        throw new UnsupportedOperationException("Archive entry " + entry.name() + " is not backed by a file");
+    }
+
+    @Override
+    public boolean isDirectory() {
+        return entry.isDirectory();
+    }
+
+    @Override
+    public long getLastModified() {
+        return entry.time();
+    }
+
+    @Override
+    public long getSize() {
+        return entry.size();
+    }
+
+    @Override
+    public InputStream open() {
+        return new ByteArrayInputStream(content());
+    }
+
+    @Override
+    public void copyTo(OutputStream output) {
+        try {
+            output.write(content());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public boolean copyTo(File target) {
+        try {
+            Files.write(target.toPath(), content());
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private byte[] content() {
+        try {
+            return entry.content();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return relativePath.getLastName();
+    }
+
+    @Override
+    public String getPath() {
+        return relativePath.getPathString();
+    }
+
+    @Override
+    public RelativePath getRelativePath() {
+        return relativePath;
+    }
+
+    public int getMode() {
+        return getPermissions().toUnixNumeric();
+    }
+
+    public FilePermissions getPermissions() {
+        return isDirectory() ? DefaultFilePermissions.DEFAULT_DIR_PERMISSIONS : DefaultFilePermissions.DEFAULT_FILE_PERMISSIONS;
+    }
+
+}
@@ -0,0 +1,127 @@
+package dev.huskuraft.gradle.plugins.fuse.tasks;
+
+import dev.huskuraft.gradle.plugins.fuse.utils.FileTools;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An index of every entry contributed by the fuses, used to find identical and conflicting entries across sources
+ */
+class FuseIndex {
+
+    private final Map<String, List<Contribution>> contributions = new HashMap<>();
+
+    private long duplicateEntries;
+    private long duplicateBytes;
+    private final List<Conflict> conflicts = new ArrayList<>();
+    private final List<Contribution> embeddedJars = new ArrayList<>();
+
+    /**
+     * Check whether an entry has the same bytes as the entry currently kept for its path, so it can be dropped.
+     * Only the kept entry is compared, an entry matching an earlier replaced one still replaces the kept entry.
+     *
+     * @param kept  - The entry currently kept for the path, or null if the path is new
+     * @param entry - The entry to look up
+     * @return - True if the entry is identical to the kept one
+     */
+    boolean isDuplicate(@Nullable FuseEntry kept, @NotNull FuseEntry entry) throws IOException {
+        if (kept == null || !kept.hasSameContent(entry)) {
+            return false;
+        }
+        duplicateEntries++;
+        duplicateBytes += entry.size();
+        return true;
+    }
+
+    /**
+     * Add an entry to the index
+     *
+     * @param source - The name of the fuse the entry comes from
+     * @param entry  - The entry
+     * @param merged - True if a merger combines this entry with the earlier ones, so a different entry is not a conflict
+     */
+    void add(@NotNull String source, @NotNull FuseEntry entry, boolean merged) {
+        var existing = contributions.computeIfAbsent(entry.name(), name -> new ArrayList<>());
+        if (!merged && !existing.isEmpty()) {
+            conflicts.add(new Conflict(entry.name(), existing.get(existing.size() - 1).source(), source));
+        }
+        existing.add(new Contribution(source, entry));
+        if (FileTools.isEmbeddedJar(entry.name())) {
+            embeddedJars.add(new Contribution(source, entry));
+        }
+    }
+
+    /**
+     * Find the embedded jars stored more than once under different paths, usually the same library
+     * embedded for each loader. Jars are grouped by size and CRC-32 first, their bytes are only compared within a group.
+     *
+     * @return - The groups of identical embedded jars, each with at least two paths
+     */
+    List<List<Contribution>> getSharedEmbeddedJars() throws IOException {
+        var candidates = new LinkedHashMap<String, List<Contribution>>();
+        for (var jar : embeddedJars) {
+            candidates.computeIfAbsent(jar.entry().size() + ":" + jar.entry().crc(), key -> new ArrayList<>()).add(jar);
+        }
+
+        var shared = new ArrayList<List<Contribution>>();
+        for (var candidate : candidates.values()) {
+            var remaining = new ArrayList<>(candidate);
+            while (remaining.size() > 1) {
+                var first = remaining.remove(0);
+                var group = new ArrayList<Contribution>();
+                group.add(first);
+                for (var iterator = remaining.iterator(); iterator.hasNext(); ) {
+                    var other = iterator.next();
+                    if (first.entry().hasSameContent(other.entry())) {
+                        group.add(other);
+                        iterator.remove();
+                    }
+                }
+                if (group.stream().map(contribution -> contribution.entry().name()).distinct().count() > 1) {
+                    shared.add(group);
+                }
+            }
+        }
+        return shared;
+    }
+
+    long getDuplicateEntries() {
+        return duplicateEntries;
+    }
+
+    long getDuplicateBytes() {
+        return duplicateBytes;
+    }
+
+    List<Conflict> getConflicts() {
+        return conflicts;
+    }
+
+    record Contribution(
+        @NotNull String source,
+        @NotNull FuseEntry entry
+    ) {
+
+    }
+
+    /**
+     * @param path     - The path both sources contain
+     * @param previous - The source whose entry is replaced
+     * @param current  - The source whose entry is kept
+     */
+    record Conflict(
+        @NotNull String path,
+        @NotNull String previous,
+        @NotNull String current
+    ) {
+
+    }
+
+}
@@ -0,0 +1,19 @@
+package dev.huskuraft.gradle.plugins.fuse.tasks;
+
+/**
+ * How the merge of a {@link FuseJar} is isolated from the build
+ */
+public enum FuseIsolation {
+    /**
+     * Run in the build process, with the classloader of the plugin
+     */
+    NONE,
+    /**
+     * Run in the build process, in a classloader holding only the plugin, its libraries and the mergers
+     */
+    CLASSLOADER,
+    /**
+     * Run in a separate worker process, with its own heap
+     */
+    PROCESS
+}
@@ -1,28 +1,53 @@
 package dev.huskuraft.gradle.plugins.fuse.tasks;
 
-import com.hypherionmc.jarmanager.JarManager;
-import com.hypherionmc.jarrelocator.Relocation;
 import dev.huskuraft.gradle.plugins.fuse.config.FuseSource;
+import dev.huskuraft.gradle.plugins.fuse.config.FuseVariant;
 import dev.huskuraft.gradle.plugins.fuse.merger.Merger;
 import dev.huskuraft.gradle.plugins.fuse.merger.ServiceFileMerger;
-import dev.huskuraft.gradle.plugins.fuse.utils.FileTools;
+import dev.huskuraft.gradle.plugins.fuse.relocation.Relocation;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
 import org.gradle.api.Action;
-import org.gradle.api.Project;
-import org.gradle.api.Task;
+import org.gradle.api.InvalidUserDataException;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.FileCollection;
+import org.gradle.api.file.RegularFileProperty;
 import org.gradle.api.internal.file.copy.CopyAction;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.CacheableTask;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.Internal;
 import org.gradle.api.tasks.Nested;
-import org.gradle.api.tasks.bundling.AbstractArchiveTask;
+import org.gradle.api.tasks.WorkResults;
 import org.gradle.jvm.tasks.Jar;
+import org.gradle.workers.WorkQueue;
+import org.gradle.workers.WorkerExecutor;
 import org.jetbrains.annotations.NotNull;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.commons.ClassRemapper;
 
+import javax.inject.Inject;
+import java.io.File;
 import java.lang.reflect.InvocationTargetException;
+import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+import java.util.zip.Deflater;
 
-public class FuseJar extends Jar implements FuseSpec {
+@CacheableTask
+public abstract class FuseJar extends Jar implements FuseSpec {
 
     public static final String FUSE_JAR_DESCRIPTION = "Merge multiple jars into a single jar, for multi mod loader projects";
     public static final String FUSE_JAR_CLASSIFIER = "fuse";
+    public static final String FUSE_CACHE_DIRECTORY = "fuse-cache";
+    public static final long FUSE_CACHE_SIZE = 512L * 1024 * 1024;
+    public static final String FUSE_REPORTS_DIRECTORY = "reports/fuse";
 
     private final List<FuseSource> fuseSources = new ArrayList<>();
 
@@ -30,18 +55,26 @@ public class FuseJar extends Jar implements FuseSpec {
 
     private final List<Merger> mergers = new ArrayList<>();
 
+    private final List<FuseVariant> variants = new ArrayList<>();
+
     public FuseJar() {
         setDescription(FUSE_JAR_DESCRIPTION);
         getArchiveClassifier().set(FUSE_JAR_CLASSIFIER);
-
-        getProject().afterEvaluate(project -> {
-            for (var fuseConfiguration : getFuseConfigurations()) {
-                resolveInputTasks(fuseConfiguration.getProject(), fuseConfiguration.getTask(), FuseJar.this);
-            }
-        });
-
-
-
+        getParallelism().convention(Runtime.getRuntime().availableProcessors());
+        getCopyRawEntries().convention(true);
+        getRelocateEmbeddedJars().convention(false);
+        getRelocateConflicts().convention(false);
+        getCompressionLevel().convention(Deflater.BEST_COMPRESSION);
+        getLayout().convention(FuseLayout.DEFAULT);
+        getStoreThreshold().convention(0);
+        getStoreCompressedFormats().convention(false);
+        getPackageIndex().convention(false);
+        getCompressionThreads().convention(getParallelism());
+        getUseCache().convention(true);
+        getCacheDirectory().convention(getProject().getLayout().getBuildDirectory().dir(FUSE_CACHE_DIRECTORY));
+        getCacheSize().convention(FUSE_CACHE_SIZE);
+        getReportFile().convention(getProject().getLayout().getBuildDirectory().file(FUSE_REPORTS_DIRECTORY + "/" + getName() + ".json"));
+        getIsolation().convention(FuseIsolation.NONE);
     }
 
     @Nested
@@ -49,43 +82,269 @@ public class FuseJar extends Jar implements FuseSpec {
         return fuseSources;
     }
 
-    @Nested
+    /**
+     * The packages that are never relocated by {@link #getRelocateConflicts()}, with their sub packages. For example: com.google.gson
+     */
+    @Input
     public List<String> getDuplicateRelocations() {
         return duplicateRelocations;
     }
 
+    @Nested
+    public List<Merger> getMergers() {
+        return mergers;
+    }
+
     /**
-     * Try to locate the correct task to run on the subproject
-     *
-     * @param project - Sub project being processed
-     * @param taskLike        - The name of the task that will be run
-     * @param fuseTask      - The FuseJars task
+     * The additional jars written from the same merged entries, see {@link #variant(String, Action)}
      */
-    private void resolveInputTasks(Project project, Object taskLike, FuseJar fuseTask) {
-        if (taskLike == null) throw new NullPointerException("task name cannot be null");
-        if (project == null) throw new NullPointerException("source project cannot be null");
+    @Nested
+    public List<FuseVariant> getVariants() {
+        return variants;
+    }
 
-        Task task = null;
+    /**
+     * The content of a fused jar only depends on the fused archives, not on the copy spec inherited from {@link Jar}
+     */
+    @Internal
+    @Override
+    public FileCollection getSource() {
+        return super.getSource();
+    }
 
-        if (taskLike instanceof String string) {
-            task = project.getTasks().getByName(string);
-        }
+    /**
+     * The maximum number of fuses read at the same time, and the number of threads relocating and merging their entries.
+     * Defaults to the number of available processors
+     */
+    @Internal
+    public abstract Property<Integer> getParallelism();
 
-        if (!(task instanceof AbstractArchiveTask archiveTask)) throw new IllegalArgumentException("task must be an AbstractArchiveTask");
+    /**
+     * Copy the compressed bytes of entries that are not modified while fusing straight from the input jars,
+     * instead of deflating them again. Only relocated classes and merged files are compressed. Defaults to true.
+     */
+    @Input
+    public abstract Property<Boolean> getCopyRawEntries();
 
-        fuseTask.dependsOn(archiveTask);
-    }
+    /**
+     * Also relocate the classes of the jars embedded in META-INF/jars and META-INF/jarjar, while streaming them.
+     * Embedded jars are otherwise copied as they are. Defaults to false.
+     */
+    @Input
+    public abstract Property<Boolean> getRelocateEmbeddedJars();
+
+    /**
+     * Relocate the packages whose classes differ between fuses, usually a library shaded in different versions,
+     * to a package prefixed with the name of each fuse. Packages that are identical in every fuse are kept once,
+     * packages listed in {@link #getDuplicateRelocations()} are never relocated. Defaults to false.
+     */
+    @Input
+    public abstract Property<Boolean> getRelocateConflicts();
+
+    /**
+     * The deflate level of the entries compressed while fusing, from 0 (stored) to 9. Defaults to 9.
+     */
+    @Input
+    public abstract Property<Integer> getCompressionLevel();
+
+    /**
+     * The order of the entries of the fused jar, see {@link FuseLayout}. Defaults to the merge order.
+     */
+    @Input
+    public abstract Property<FuseLayout> getLayout();
+
+    /**
+     * Store entries of at most this many bytes instead of deflating them, they are read without inflating
+     * at the cost of a slightly larger jar. Defaults to 0, every entry is deflated.
+     */
+    @Input
+    public abstract Property<Integer> getStoreThreshold();
+
+    /**
+     * Store entries of formats that are already compressed, such as images, sounds and archives,
+     * instead of deflating them again. Defaults to false.
+     */
+    @Input
+    public abstract Property<Boolean> getStoreCompressedFormats();
+
+    /**
+     * Write a META-INF/INDEX.LIST after the manifest, listing every package of the fused jar in the jar index format.
+     * Defaults to false, only enable it for a jar loaded by a JDK that reads the index.
+     * JDK 18 and later ignore the index. Older JDKs trust it, so entries it does not list, such as the resources
+     * under META-INF, can be hidden from the class loader.
+     */
+    @Input
+    public abstract Property<Boolean> getPackageIndex();
+
+    /**
+     * The number of threads compressing the entries of the fused jar, the jar is the same whatever the number of threads.
+     * Defaults to the parallelism.
+     */
+    @Internal
+    public abstract Property<Integer> getCompressionThreads();
+
+    /**
+     * The bytes of entry content held in memory while fusing, beyond it content is spilled to temporary files.
+     * Relocated classes, merged files and entries read to be compared count towards it, entries copied raw do not.
+     * Defaults to a quarter of the maximum heap of the worker.
+     */
+    @Internal
+    public abstract Property<Long> getMemoryBudget();
+
+    /**
+     * Reuse the relocated jars of fuses that did not change since a previous build. Defaults to true.
+     */
+    @Internal
+    public abstract Property<Boolean> getUseCache();
+
+    /**
+     * The directory the relocated jars are cached in. Defaults to build/fuse-cache.
+     */
+    @Internal
+    public abstract DirectoryProperty getCacheDirectory();
+
+    /**
+     * The maximum size of the cache in bytes, the least recently used jars are evicted beyond it. Defaults to 512 MiB.
+     */
+    @Internal
+    public abstract Property<Long> getCacheSize();
+
+    /**
+     * The JSON report of the timings, entry and byte counts of the last run. Defaults to build/reports/fuse/{task name}.json.
+     */
+    @Internal
+    public abstract RegularFileProperty getReportFile();
+
+    /**
+     * When set, the phases of every run are also written to this file in the Chrome trace event format,
+     * to be opened in chrome://tracing or Perfetto.
+     */
+    @Internal
+    public abstract RegularFileProperty getTraceFile();
+
+    /**
+     * How the merge is isolated from the build, see {@link FuseIsolation}. Defaults to none.
+     * Mergers that cannot be serialized, such as mergers filtered by specs or closures, require none.
+     */
+    @Internal
+    public abstract Property<FuseIsolation> getIsolation();
 
+    /**
+     * The maximum heap size of the worker process, for example "1g". Only used with the process isolation.
+     */
+    @Internal
+    public abstract Property<String> getMaxHeapSize();
+
+    @Inject
+    protected abstract WorkerExecutor getWorkerExecutor();
+
+    /**
+     * The merge is submitted to a worker, the task completes once the worker is done.
+     * Other tasks, including other fuse tasks of the same project, can run meanwhile.
+     * Mergers that cannot be serialized, such as mergers filtered by specs or closures, are only supported
+     * without isolation, the merge then runs in the task itself.
+     */
     @Override
     protected @NotNull CopyAction createCopyAction() {
+        checkMergers();
+        if (!getMergers().stream().allMatch(Merger::canRunInWorker)) {
+            return stream -> {
+                var parameters = getObjectFactory().newInstance(FuseWorkParameters.class);
+                configureWork(parameters);
+                new MergeJarAction(FuseWorkAction.settings(parameters)).run();
+                return WorkResults.didWork(true);
+            };
+        }
+        var queue = getWorkQueue();
+        return stream -> {
+            queue.submit(FuseWorkAction.class, this::configureWork);
+            return WorkResults.didWork(true);
+        };
+    }
+
+    /**
+     * Fail if a merger cannot be serialized to an isolated worker
+     */
+    private void checkMergers() {
+        var isolation = getIsolation().get();
+        if (isolation == FuseIsolation.NONE) {
+            return;
+        }
+        for (var merger : getMergers()) {
+            if (!merger.canRunInWorker()) {
+                throw new InvalidUserDataException("Merger " + merger.getName() + " of " + getPath() + " cannot be serialized, for example because it is filtered by specs or closures. "
+                    + "It cannot run with the " + isolation.name().toLowerCase(Locale.ROOT) + " isolation, filter it by patterns or use the none isolation.");
+            }
+        }
+    }
+
+    private void configureWork(FuseWorkParameters parameters) {
+        parameters.getArchiveFile().set(getArchiveFile());
+        parameters.getTemporaryDir().set(getTemporaryDir());
+        parameters.getFuses().set(getFuses());
+        parameters.getMergers().set(getMergers());
+        parameters.getDuplicateRelocations().set(getDuplicateRelocations());
+        parameters.getParallelism().set(getParallelism());
+        parameters.getCopyRawEntries().set(getCopyRawEntries());
+        parameters.getRelocateEmbeddedJars().set(getRelocateEmbeddedJars());
+        parameters.getRelocateConflicts().set(getRelocateConflicts());
+        parameters.getPreserveFileTimestamps().set(isPreserveFileTimestamps());
+        parameters.getReproducibleFileOrder().set(isReproducibleFileOrder());
+        parameters.getLayout().set(getLayout());
+        parameters.getStoreThreshold().set(getStoreThreshold());
+        parameters.getStoreCompressedFormats().set(getStoreCompressedFormats());
+        parameters.getPackageIndex().set(getPackageIndex());
+        parameters.getCompressionLevel().set(getCompressionLevel());
+        parameters.getCompressionThreads().set(getCompressionThreads());
+        parameters.getVariants().set(getVariants().stream().map(FuseJar::getOutput).toList());
+        parameters.getMemoryBudget().set(getMemoryBudget());
+        if (getUseCache().get()) {
+            parameters.getCacheDirectory().set(getCacheDirectory());
+            parameters.getCacheSize().set(getCacheSize());
+            parameters.getCacheVersion().set(Objects.requireNonNullElse(FuseJar.class.getPackage().getImplementationVersion(), "unspecified"));
+        }
+        parameters.getReportFile().set(getReportFile());
+        parameters.getTraceFile().set(getTraceFile());
+    }
+
+    private WorkQueue getWorkQueue() {
+        return switch (getIsolation().get()) {
+            case NONE -> getWorkerExecutor().noIsolation();
+            case CLASSLOADER -> getWorkerExecutor().classLoaderIsolation(spec -> spec.getClasspath().from(getWorkerClasspath()));
+            case PROCESS -> getWorkerExecutor().processIsolation(spec -> {
+                spec.getClasspath().from(getWorkerClasspath());
+                if (getMaxHeapSize().isPresent()) {
+                    spec.forkOptions(options -> options.setMaxHeapSize(getMaxHeapSize().get()));
+                }
+            });
+        };
+    }
+
+    /**
+     * The classpath of an isolated worker: the plugin, the libraries it uses and the classes of the mergers
+     */
+    private Set<File> getWorkerClasspath() {
+        var classes = new ArrayList<Class<?>>(List.of(FuseJar.class, ClassReader.class, ClassRemapper.class, ZipFile.class, FileUtils.class));
+        getMergers().forEach(merger -> classes.add(merger.getClass()));
+
+        var classpath = new LinkedHashSet<File>();
+        for (var type : classes) {
+            var source = type.getProtectionDomain().getCodeSource();
+            if (source == null) {
+                continue;
+            }
+            try {
+                classpath.add(new File(source.getLocation().toURI()));
+            } catch (URISyntaxException e) {
+                throw new IllegalStateException("Cannot locate the classes of " + type.getName(), e);
+            }
+        }
+        return classpath;
+    }
 
-        return new MergeJarAction(
-            getArchiveFile().get().getAsFile(),
-            getTemporaryDir(),
-            JarManager.getInstance(),
-            getFuses(),
-            getMergers(),
-            getDuplicateRelocations());
+    private static FuseOutput getOutput(FuseVariant variant) {
+        var relocations = variant.getRelocations().get().entrySet().stream().map(e -> new Relocation(e.getKey(), e.getValue())).toList();
+        return new FuseOutput(variant.getName(), variant.getArchiveFile().get().getAsFile(), variant.getCompressionLevel().get(), relocations, Set.copyOf(variant.getIncludes()), Set.copyOf(variant.getExcludes()));
     }
 
     private List<Fuse> getFuses() {
@@ -93,36 +352,72 @@ public class FuseJar extends Jar implements FuseSpec {
         if (getFuseConfigurations().isEmpty()) getLogger().warn("Only one project was found.");
         if (getFuseConfigurations().size() == 1) getLogger().warn("No projects were found.");
 
+        return getFuses(getFuseConfigurations());
+
+    }
+
+    /**
+     * @param sources - The configured sources
+     * @return - The fuses of the sources whose archive is known, in the declared order
+     * @throws InvalidUserDataException - If two sources have the same name, the name tells the fuses apart in the conflict relocations and reports
+     */
+    static List<Fuse> getFuses(List<FuseSource> sources) {
         var fuses = new ArrayList<Fuse>();
+        var names = new HashSet<String>();
 
-        for (var entry : getFuseConfigurations()) {
-            var inputFile = FileTools.resolveFile(entry.getProject(), entry.getTask());
+        for (var entry : sources) {
+            var inputFile = entry.getArchiveFile().getAsFile().getOrNull();
             if (inputFile != null) {
-                var relocations = entry.getRelocations().entrySet().stream().map(e -> new Relocation(e.getKey(), e.getValue())).toList();
-                fuses.add(new Fuse.Impl(inputFile, entry.getProject().getName(), relocations));
+                var name = entry.getName().get();
+                if (!names.add(name)) {
+                    throw new InvalidUserDataException("Two fuse sources are named " + name + ", set a unique name on one of them");
+                }
+                var relocations = entry.getRelocations().get().entrySet().stream().map(e -> new Relocation(e.getKey(), e.getValue())).toList();
+                fuses.add(new Fuse.Impl(inputFile, name, relocations));
             }
         }
 
         return fuses;
-
-    }
-
-    private List<Merger> getMergers() {
-        return mergers;
     }
 
     @Override
     public FuseSpec includeJar(Action<FuseSource> closure) {
-        var fuseConfiguration = new FuseSource();
+        var fuseConfiguration = new FuseSource(getProject().getObjects());
         getProject().configure(List.of(fuseConfiguration), closure);
 
-        if (fuseConfiguration.getProject() == null) {
-            throw new IllegalStateException("includeJar {} requires a \"source\"");
+        if (!fuseConfiguration.isConfigured()) {
+            throw new IllegalStateException("includeJar {} requires a \"source\" or an \"archive\"");
         }
         fuseSources.add(fuseConfiguration);
         return this;
     }
 
+    /**
+     * Write another jar from the same fuse. The inputs are only read and relocated once, whatever the number of variants.
+     * For example, a slim jar without the embedded jars:
+     * <pre>
+     * variant('slim') {
+     *     exclude('META-INF/jars/**', 'META-INF/jarjar/**')
+     * }
+     * </pre>
+     *
+     * @param name   - The name of the variant, appended to the name of the fused jar
+     * @param action - Configures the variant
+     * @return - The variant
+     */
+    public FuseVariant variant(String name, Action<FuseVariant> action) {
+        if (variants.stream().anyMatch(variant -> variant.getName().equals(name))) {
+            throw new IllegalStateException("Variant " + name + " is already declared");
+        }
+        var variant = new FuseVariant(name, getProject().getObjects());
+        variant.getArchiveFile().convention(getDestinationDirectory().file(getArchiveFileName().map(fileName ->
+            FilenameUtils.getBaseName(fileName) + "-" + name + "." + FilenameUtils.getExtension(fileName))));
+        variant.getCompressionLevel().convention(getCompressionLevel());
+        getProject().configure(List.of(variant), action);
+        variants.add(variant);
+        return variant;
+    }
+
     public void mergeServiceFiles() {
         try {
             merge(ServiceFileMerger.class, null);
@@ -139,6 +434,7 @@ public class FuseJar extends Jar implements FuseSpec {
     public void merge(Merger merger, Action<Merger> action) {
         if (action != null) action.execute(merger);
         this.mergers.add(merger);
+        checkMergers();
     }
 
 }
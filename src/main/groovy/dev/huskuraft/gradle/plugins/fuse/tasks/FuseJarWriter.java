@@ -0,0 +1,234 @@
+package dev.huskuraft.gradle.plugins.fuse.tasks;
+
+import dev.huskuraft.gradle.plugins.fuse.utils.FileTools;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.GregorianCalendar;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Writes a jar, compressing entries on the compressors of a {@link FusePipeline}. Entries are compressed into memory in parallel,
+ * then written by a single thread as raw entries, in the order they were given, so the output is deterministic.
+ */
+class FuseJarWriter implements Closeable {
+
+    private static final int WINDOW_PER_THREAD = 16;
+
+    /**
+     * The time of every entry when timestamps are not preserved, the same as the archive tasks of Gradle
+     */
+    static final long CONSTANT_TIME_FOR_ZIP_ENTRIES = new GregorianCalendar(1980, Calendar.FEBRUARY, 1, 0, 0, 0).getTimeInMillis();
+
+    private final ZipArchiveOutputStream output;
+    private final int compressionLevel;
+    private final boolean copyRawEntries;
+    private final boolean preserveFileTimestamps;
+    private final int storeThreshold;
+    private final boolean storeCompressedFormats;
+    private final FusePipeline pipeline;
+    private final int window;
+    private final long maxPendingBytes;
+    private final Deque<Pending> pending = new ArrayDeque<>();
+    private long pendingBytes;
+    private final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param file                   - The jar to write
+     * @param pipeline               - The pipeline whose compressors compress the entries, shared with the other jars written meanwhile
+     * @param compressionLevel       - The deflate level of compressed entries, 0 stores every entry
+     * @param copyRawEntries         - Copy unchanged entries from their input archive instead of compressing them again
+     * @param preserveFileTimestamps - Keep the time of every entry, instead of a constant time
+     * @param storeThreshold         - Store entries of at most this many bytes instead of deflating them, 0 to deflate every entry
+     * @param storeCompressedFormats - Store entries of formats that are already compressed, such as images and sounds
+     * @param maxPendingBytes        - The most uncompressed bytes queued at once, older entries are written before more are queued
+     */
+    FuseJarWriter(@NotNull File file, @NotNull FusePipeline pipeline, int compressionLevel, boolean copyRawEntries, boolean preserveFileTimestamps, int storeThreshold, boolean storeCompressedFormats, long maxPendingBytes) throws IOException {
+        this.output = new ZipArchiveOutputStream(FileTools.createOrReCreateF(file));
+        this.compressionLevel = compressionLevel;
+        this.copyRawEntries = copyRawEntries;
+        this.preserveFileTimestamps = preserveFileTimestamps;
+        this.storeThreshold = storeThreshold;
+        this.storeCompressedFormats = storeCompressedFormats;
+        this.pipeline = pipeline;
+        this.window = pipeline.getCompressorThreads() * WINDOW_PER_THREAD;
+        this.maxPendingBytes = maxPendingBytes;
+    }
+
+    /**
+     * Queue an entry. Once enough entries or bytes are queued, the oldest ones are written,
+     * so at most a bounded number of compressed entries are held in memory.
+     *
+     * @param entry - The entry to write
+     */
+    void write(@NotNull FuseEntry entry) throws IOException {
+        var store = isStored(entry);
+        var raw = copyRawEntries && entry.isRaw() && (!store || entry.source().getMethod() == ZipEntry.STORED);
+        // raw entries are streamed from their archive when written, they hold no memory while queued
+        var size = raw || entry.isDirectory() ? 0 : Math.max(0, entry.size());
+        while (!pending.isEmpty() && pendingBytes + size > maxPendingBytes) {
+            writeNext();
+        }
+        if (raw) {
+            pending.add(new Pending(CompletableFuture.completedFuture(new PreparedEntry(entry, time(entry), null, null)), size));
+        } else if (store) {
+            pending.add(new Pending(CompletableFuture.completedFuture(compress(entry, true)), size));
+        } else {
+            pending.add(new Pending(pipeline.compress(() -> compress(entry, false)), size));
+        }
+        pendingBytes += size;
+        while (pending.size() > window) {
+            writeNext();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            while (!pending.isEmpty()) {
+                writeNext();
+            }
+            output.finish();
+        } finally {
+            pending.forEach(next -> next.future().cancel(true));
+            output.close();
+            deflaters.forEach(Deflater::end);
+        }
+    }
+
+    private void writeNext() throws IOException {
+        try {
+            var next = pending.removeFirst();
+            pendingBytes -= next.size();
+            var prepared = next.future().get();
+            prepared.writeTo(output);
+            prepared.entry().evict();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing entries");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException exception) throw exception;
+            if (e.getCause() instanceof RuntimeException exception) throw exception;
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private boolean isStored(FuseEntry entry) {
+        if (entry.isDirectory()) {
+            return false;
+        }
+        return compressionLevel == Deflater.NO_COMPRESSION
+            || storeThreshold > 0 && entry.size() <= storeThreshold
+            || storeCompressedFormats && EntryKind.isCompressedFormat(entry.name());
+    }
+
+    private PreparedEntry compress(FuseEntry entry, boolean store) throws IOException {
+        var zipEntry = new ZipArchiveEntry(entry.name());
+        zipEntry.setTime(time(entry));
+        if (entry.isDirectory()) {
+            zipEntry.setMethod(ZipEntry.STORED);
+            zipEntry.setSize(0);
+            zipEntry.setCompressedSize(0);
+            zipEntry.setCrc(0);
+            return new PreparedEntry(entry, zipEntry.getTime(), zipEntry, new byte[0]);
+        }
+
+        var content = entry.content();
+        var crc = new CRC32();
+        crc.update(content);
+        zipEntry.setCrc(crc.getValue());
+        zipEntry.setSize(content.length);
+
+        var compressed = store || compressionLevel == Deflater.NO_COMPRESSION ? null : deflate(content);
+        if (compressed == null || compressed.length >= content.length) {
+            zipEntry.setMethod(ZipEntry.STORED);
+            zipEntry.setCompressedSize(content.length);
+            return new PreparedEntry(entry, zipEntry.getTime(), zipEntry, content);
+        }
+        zipEntry.setMethod(ZipEntry.DEFLATED);
+        zipEntry.setCompressedSize(compressed.length);
+        return new PreparedEntry(entry, zipEntry.getTime(), zipEntry, compressed);
+    }
+
+    private long time(FuseEntry entry) {
+        return preserveFileTimestamps ? entry.time() : CONSTANT_TIME_FOR_ZIP_ENTRIES;
+    }
+
+    private byte[] deflate(byte[] content) {
+        var deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(compressionLevel, true);
+        }
+        try {
+            deflater.setInput(content);
+            deflater.finish();
+            var compressed = new ByteArrayOutputStream(Math.max(64, content.length / 2));
+            var buffer = new byte[8192];
+            while (!deflater.finished()) {
+                var length = deflater.deflate(buffer);
+                compressed.write(buffer, 0, length);
+            }
+            return compressed.toByteArray();
+        } finally {
+            deflater.reset();
+            deflaters.add(deflater);
+        }
+    }
+
+    /**
+     * An entry being prepared, with the number of bytes it holds in memory
+     */
+    private record Pending(Future<PreparedEntry> future, long size) {
+    }
+
+    /**
+     * An entry ready to be written, either compressed in memory or copied raw from its input archive
+     */
+    private record PreparedEntry(FuseEntry entry, long time, ZipArchiveEntry zipEntry, byte[] data) {
+
+        void writeTo(ZipArchiveOutputStream output) throws IOException {
+            if (zipEntry != null) {
+                output.addRawArchiveEntry(zipEntry, new ByteArrayInputStream(data));
+                return;
+            }
+            copyRaw(output, entry, time);
+        }
+    }
+
+    /**
+     * Copy the compressed bytes of an unchanged entry from its input archive, see {@link FuseEntry#isRaw()}
+     *
+     * @param output - The archive to write to
+     * @param entry  - The entry to copy
+     * @param time   - The time of the written entry
+     */
+    static void copyRaw(@NotNull ZipArchiveOutputStream output, @NotNull FuseEntry entry, long time) throws IOException {
+        var source = entry.source();
+        var rawEntry = new ZipArchiveEntry(entry.name());
+        rawEntry.setTime(time);
+        rawEntry.setMethod(source.getMethod());
+        rawEntry.setCrc(source.getCrc());
+        rawEntry.setSize(source.getSize());
+        rawEntry.setCompressedSize(source.getCompressedSize());
+        try (var input = entry.rawContent()) {
+            output.addRawArchiveEntry(rawEntry, input);
+        }
+    }
+
+}
@@ -0,0 +1,17 @@
+package dev.huskuraft.gradle.plugins.fuse.tasks;
+
+/**
+ * The order of the entries in a {@link FuseJar}. The manifest is always the first entry.
+ */
+public enum FuseLayout {
+    /**
+     * Entries in the order they are merged, fuse by fuse, or sorted by path with a reproducible file order
+     */
+    DEFAULT,
+    /**
+     * The directories first, so each directory precedes its entries. Then the files a loader reads while starting:
+     * service files, loader metadata, mixin configs, access wideners and refmaps. Then classes grouped by package,
+     * embedded jars, and the other resources. Entries are sorted by path within each group.
+     */
+    STARTUP
+}
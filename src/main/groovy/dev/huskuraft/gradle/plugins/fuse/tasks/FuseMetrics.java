@@ -0,0 +1,340 @@
+package dev.huskuraft.gradle.plugins.fuse.tasks;
+
+import dev.huskuraft.gradle.plugins.fuse.utils.FileTools;
+import org.gradle.api.logging.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timings and counters of a single fuse. Phases are recorded as spans, from any thread,
+ * and can be logged, written as a JSON report, or exported as a Chrome trace.
+ */
+class FuseMetrics {
+
+    static final String READ = "read";
+    static final String RELOCATE = "relocate";
+    static final String MANIFEST = "manifest";
+    static final String MERGE = "merge";
+    static final String WRITE = "write";
+
+    private final long start = System.nanoTime();
+    private final long startTime = System.currentTimeMillis();
+    private final ConcurrentLinkedQueue<Span> spans = new ConcurrentLinkedQueue<>();
+    private final Map<String, SourceMetrics> sources = new ConcurrentHashMap<>();
+    private final AtomicLong writtenEntries = new AtomicLong();
+    private final AtomicLong writtenBytes = new AtomicLong();
+    private final long startHeap = usedHeap();
+    private final AtomicLong peakHeap = new AtomicLong(startHeap);
+    private long end;
+    private long bufferedBytes;
+    private long budgetBytes;
+    private long spilledEntries;
+    private long spilledBytes;
+
+    /**
+     * Start timing a phase, the phase ends when the returned span is closed
+     *
+     * @param name   - The name of the phase
+     * @param source - The source the phase works on, or null for the whole fuse
+     * @return - The running span
+     */
+    Span start(@NotNull String name, @Nullable String source) {
+        return new Span(name, source, Thread.currentThread().getName(), System.nanoTime());
+    }
+
+    /**
+     * @param source - The name of a source
+     * @return - The counters of the source
+     */
+    SourceMetrics source(@NotNull String source) {
+        return sources.computeIfAbsent(source, SourceMetrics::new);
+    }
+
+    void written(long entries, long bytes) {
+        writtenEntries.addAndGet(entries);
+        writtenBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Record the memory used by the fuse. The heap is sampled when the fuse starts and whenever a phase ends,
+     * the peak is the highest sample. It is the heap of the whole process, including other work running meanwhile,
+     * the state of the JVM is never changed to measure it.
+     *
+     * @param budget - The memory budget of the fuse
+     */
+    void memory(@NotNull MemoryBudget budget) {
+        sampleHeap();
+        bufferedBytes = budget.getPeak();
+        budgetBytes = budget.getLimit();
+        spilledEntries = budget.getSpilledEntries();
+        spilledBytes = budget.getSpilledBytes();
+    }
+
+    void finish() {
+        end = System.nanoTime();
+    }
+
+    void log(@NotNull Logger logger) {
+        if (spilledEntries > 0) {
+            logger.lifecycle("Fuse memory budget of {} MB exceeded, {} entries ({} MB) were spilled to disk", megabytes(budgetBytes), spilledEntries, megabytes(spilledBytes));
+        }
+        if (!logger.isInfoEnabled()) {
+            return;
+        }
+        var totals = phaseTotals(null);
+        logger.info("Fused {} sources in {} ms", sources.size(), millis(end - start));
+        totals.forEach((phase, nanos) -> logger.info("  {}: {} ms", phase, millis(nanos)));
+        for (var source : sortedSources()) {
+            logger.info("  {}: read {} entries, {} bytes in {} ms ({} MB/s), {} classes relocated{}",
+                source.name,
+                source.entries.get(),
+                source.bytes.get(),
+                millis(phaseTotals(source.name).getOrDefault(READ, 0L)),
+                throughput(source.bytes.get(), phaseTotals(source.name).getOrDefault(READ, 0L)),
+                source.relocatedClasses.get(),
+                source.cacheHit ? " (cached)" : "");
+        }
+        logger.info("  wrote {} entries, {} bytes in {} ms ({} MB/s)",
+            writtenEntries.get(),
+            writtenBytes.get(),
+            millis(totals.getOrDefault(WRITE, 0L)),
+            throughput(writtenBytes.get(), totals.getOrDefault(WRITE, 0L)));
+        logger.info("  peak heap {} MB ({} MB above the start), {} of {} MB buffered, {} entries ({} MB) spilled",
+            megabytes(peakHeap.get()),
+            megabytes(peakHeap.get() - startHeap),
+            megabytes(bufferedBytes),
+            megabytes(budgetBytes),
+            spilledEntries,
+            megabytes(spilledBytes));
+    }
+
+    /**
+     * Write the totals of every phase and source as JSON
+     *
+     * @param file - The report file
+     */
+    void writeReport(@NotNull File file) throws IOException {
+        var json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"startTime\": ").append(startTime).append(",\n");
+        json.append("  \"durationMillis\": ").append(millis(end - start)).append(",\n");
+        json.append("  \"phases\": {");
+        appendPhases(json, phaseTotals(null), "    ");
+        json.append("},\n");
+        json.append("  \"sources\": [");
+        var sorted = sortedSources();
+        for (var i = 0; i < sorted.size(); i++) {
+            var source = sorted.get(i);
+            var phases = phaseTotals(source.name);
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append("    {\n");
+            json.append("      \"name\": ").append(quote(source.name)).append(",\n");
+            json.append("      \"entries\": ").append(source.entries.get()).append(",\n");
+            json.append("      \"bytes\": ").append(source.bytes.get()).append(",\n");
+            json.append("      \"relocatedClasses\": ").append(source.relocatedClasses.get()).append(",\n");
+            json.append("      \"cached\": ").append(source.cacheHit).append(",\n");
+            json.append("      \"megabytesPerSecond\": ").append(throughput(source.bytes.get(), phases.getOrDefault(READ, 0L))).append(",\n");
+            json.append("      \"phases\": {");
+            appendPhases(json, phases, "        ");
+            json.append("}\n");
+            json.append("    }");
+        }
+        json.append(sorted.isEmpty() ? "],\n" : "\n  ],\n");
+        var write = phaseTotals(null).getOrDefault(WRITE, 0L);
+        json.append("  \"output\": {\n");
+        json.append("    \"entries\": ").append(writtenEntries.get()).append(",\n");
+        json.append("    \"bytes\": ").append(writtenBytes.get()).append(",\n");
+        json.append("    \"megabytesPerSecond\": ").append(throughput(writtenBytes.get(), write)).append("\n");
+        json.append("  },\n");
+        json.append("  \"memory\": {\n");
+        json.append("    \"startHeapBytes\": ").append(startHeap).append(",\n");
+        json.append("    \"peakHeapBytes\": ").append(peakHeap.get()).append(",\n");
+        json.append("    \"budgetBytes\": ").append(budgetBytes).append(",\n");
+        json.append("    \"bufferedBytes\": ").append(bufferedBytes).append(",\n");
+        json.append("    \"spilledEntries\": ").append(spilledEntries).append(",\n");
+        json.append("    \"spilledBytes\": ").append(spilledBytes).append("\n");
+        json.append("  }\n");
+        json.append("}\n");
+        write(file, json);
+    }
+
+    /**
+     * Write every span in the Chrome trace event format, it can be opened in chrome://tracing or Perfetto
+     *
+     * @param file - The trace file
+     */
+    void writeTrace(@NotNull File file) throws IOException {
+        var threads = new LinkedHashMap<String, Integer>();
+        var json = new StringBuilder("{\"traceEvents\":[");
+        var first = true;
+        for (var span : spans) {
+            var thread = threads.computeIfAbsent(span.thread, name -> threads.size() + 1);
+            json.append(first ? "\n" : ",\n");
+            json.append("{\"name\":").append(quote(span.source == null ? span.name : span.name + " " + span.source));
+            json.append(",\"cat\":").append(quote(span.name));
+            json.append(",\"ph\":\"X\",\"pid\":1,\"tid\":").append(thread);
+            json.append(",\"ts\":").append((span.start - start) / 1000);
+            json.append(",\"dur\":").append((span.end - span.start) / 1000).append('}');
+            first = false;
+        }
+        for (var thread : threads.entrySet()) {
+            json.append(first ? "\n" : ",\n");
+            json.append("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":").append(thread.getValue());
+            json.append(",\"args\":{\"name\":").append(quote(thread.getKey())).append("}}");
+            first = false;
+        }
+        json.append("\n]}\n");
+        write(file, json);
+    }
+
+    private Map<String, Long> phaseTotals(@Nullable String source) {
+        var totals = new LinkedHashMap<String, Long>();
+        for (var span : spans) {
+            if (source == null ? span.source == null : source.equals(span.source)) {
+                totals.merge(span.name, span.end - span.start, Long::sum);
+            }
+        }
+        return totals;
+    }
+
+    private List<SourceMetrics> sortedSources() {
+        var sorted = new ArrayList<>(sources.values());
+        sorted.sort(Comparator.comparing(source -> source.name));
+        return sorted;
+    }
+
+    private static void appendPhases(StringBuilder json, Map<String, Long> phases, String indent) {
+        var first = true;
+        for (var phase : phases.entrySet()) {
+            json.append(first ? "\n" : ",\n");
+            json.append(indent).append(quote(phase.getKey() + "Millis")).append(": ").append(millis(phase.getValue()));
+            first = false;
+        }
+        if (!first) {
+            json.append('\n').append(indent, 0, indent.length() - 2);
+        }
+    }
+
+    private static void write(File file, CharSequence content) throws IOException {
+        FileTools.getOrCreate(file.getParentFile());
+        Files.writeString(file.toPath(), content, StandardCharsets.UTF_8);
+    }
+
+    private void sampleHeap() {
+        peakHeap.accumulateAndGet(usedHeap(), Math::max);
+    }
+
+    private static long usedHeap() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long megabytes(long bytes) {
+        return bytes / (1024 * 1024);
+    }
+
+    private static long millis(long nanos) {
+        return nanos / 1_000_000;
+    }
+
+    private static String throughput(long bytes, long nanos) {
+        if (nanos <= 0) {
+            return "0.0";
+        }
+        return String.format(Locale.ROOT, "%.1f", bytes / 1e6 / (nanos / 1e9));
+    }
+
+    private static String quote(String value) {
+        var quoted = new StringBuilder("\"");
+        for (var i = 0; i < value.length(); i++) {
+            var c = value.charAt(i);
+            switch (c) {
+                case '"' -> quoted.append("\\\"");
+                case '\\' -> quoted.append("\\\\");
+                case '\n' -> quoted.append("\\n");
+                case '\r' -> quoted.append("\\r");
+                case '\t' -> quoted.append("\\t");
+                default -> {
+                    if (c < 0x20) quoted.append(String.format("\\u%04x", (int) c));
+                    else quoted.append(c);
+                }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * A timed phase, recorded when first closed, closing it again does nothing
+     */
+    final class Span implements AutoCloseable {
+
+        private final String name;
+        private final String source;
+        private final String thread;
+        private final long start;
+        private long end;
+        private boolean closed;
+
+        private Span(String name, String source, String thread, long start) {
+            this.name = name;
+            this.source = source;
+            this.thread = thread;
+            this.start = start;
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            end = System.nanoTime();
+            spans.add(this);
+            sampleHeap();
+        }
+    }
+
+    /**
+     * The counters of a single source
+     */
+    static final class SourceMetrics {
+
+        private final String name;
+        private final AtomicLong entries = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicLong relocatedClasses = new AtomicLong();
+        private volatile boolean cacheHit;
+
+        private SourceMetrics(String name) {
+            this.name = name;
+        }
+
+        void read(long entries, long bytes) {
+            this.entries.addAndGet(entries);
+            this.bytes.addAndGet(bytes);
+        }
+
+        void relocated(long classes) {
+            relocatedClasses.addAndGet(classes);
+        }
+
+        void cacheHit() {
+            cacheHit = true;
+        }
+    }
+
+}
@@ -0,0 +1,40 @@
+package dev.huskuraft.gradle.plugins.fuse.tasks;
+
+import dev.huskuraft.gradle.plugins.fuse.relocation.Relocation;
+import org.gradle.api.file.FileTreeElement;
+import org.gradle.api.specs.Spec;
+import org.gradle.api.tasks.util.PatternSet;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A variant jar written by the fuse worker, see {@link dev.huskuraft.gradle.plugins.fuse.config.FuseVariant}
+ *
+ * @param name             - The name of the variant
+ * @param jarFile          - The jar to write
+ * @param compressionLevel - The deflate level of the compressed entries
+ * @param relocations      - The relocations applied on top of the merged entries
+ * @param includes         - The patterns of the entries kept, every entry is kept when empty
+ * @param excludes         - The patterns of the entries left out
+ */
+public record FuseOutput(
+    @NotNull String name,
+    @NotNull File jarFile,
+    int compressionLevel,
+    @NotNull List<Relocation> relocations,
+    @NotNull Set<String> includes,
+    @NotNull Set<String> excludes
+) implements Serializable {
+
+    /**
+     * @return - The spec of the entries kept in the variant
+     */
+    Spec<FileTreeElement> spec() {
+        return new PatternSet().include(includes).exclude(excludes).getAsSpec();
+    }
+
+}
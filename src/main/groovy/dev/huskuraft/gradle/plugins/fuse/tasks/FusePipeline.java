@@ -0,0 +1,150 @@
+package dev.huskuraft.gradle.plugins.fuse.tasks;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * The stages of a fuse. Readers inflate the entries of every fuse, transformers relocate and merge them,
+ * and each jar is emitted by a single ordered writer. The queue in front of the transformers is bounded,
+ * a reader that gets ahead blocks until a transformer catches up, so disk reads and remapping overlap
+ * without holding the entries of a whole fuse in flight. Every jar written at the same time compresses its entries
+ * on the same compressors. A stage without threads runs on the calling thread.
+ */
+final class FusePipeline implements Closeable {
+
+    private static final int QUEUE_PER_THREAD = 16;
+
+    private final ExecutorService readers;
+    private final ExecutorService transformers;
+    private final ExecutorService writers;
+    private final ExecutorService compressors;
+    private final int compressorThreads;
+    private final Semaphore queue;
+
+    /**
+     * @param readers      - The number of threads reading fuses
+     * @param transformers - The number of threads relocating and merging entries, at most 1 to transform on the reading thread
+     * @param writers      - The number of jars written at the same time besides the one written on the calling thread
+     * @param compressors  - The number of threads compressing the entries of every jar, at most 1 to compress on the writing thread
+     */
+    FusePipeline(int readers, int transformers, int writers, int compressors) {
+        this.readers = readers > 0 ? Executors.newFixedThreadPool(readers) : null;
+        this.transformers = transformers > 1 ? Executors.newFixedThreadPool(transformers) : null;
+        this.writers = writers > 0 ? Executors.newFixedThreadPool(writers) : null;
+        this.compressors = compressors > 1 ? Executors.newFixedThreadPool(compressors) : null;
+        this.compressorThreads = Math.max(1, compressors);
+        this.queue = new Semaphore(Math.max(1, transformers) * QUEUE_PER_THREAD);
+    }
+
+    /**
+     * Start reading a fuse
+     *
+     * @param task - Reads the fuse
+     */
+    <T> Future<T> read(@NotNull Callable<T> task) {
+        return submit(readers, task);
+    }
+
+    /**
+     * Queue the transformation of an entry, blocking while the queue of the transformers is full
+     *
+     * @param task - Transforms the entry
+     */
+    <T> Future<T> transform(@NotNull Callable<T> task) throws InterruptedIOException {
+        if (transformers == null) {
+            return submit(null, task);
+        }
+        try {
+            queue.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while queueing entries");
+        }
+        try {
+            return transformers.submit(() -> {
+                try {
+                    return task.call();
+                } finally {
+                    queue.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            queue.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Start writing a jar
+     *
+     * @param task - Writes the jar
+     */
+    <T> Future<T> write(@NotNull Callable<T> task) {
+        return submit(writers, task);
+    }
+
+    /**
+     * Start compressing an entry
+     *
+     * @param task - Compresses the entry
+     */
+    <T> Future<T> compress(@NotNull Callable<T> task) {
+        return submit(compressors, task);
+    }
+
+    /**
+     * @return - The number of threads compressing entries, 1 when they are compressed on the writing thread
+     */
+    int getCompressorThreads() {
+        return compressorThreads;
+    }
+
+    /**
+     * Wait for the result of a stage
+     *
+     * @param future - The result
+     * @return - The value of the result, failures of the stage are thrown as they are
+     */
+    static <T> T join(@NotNull Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while fusing");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException exception) throw exception;
+            if (e.getCause() instanceof RuntimeException exception) throw exception;
+            if (e.getCause() instanceof Error error) throw error;
+            throw new IOException(e.getCause());
+        }
+    }
+
+    @Override
+    public void close() {
+        if (readers != null) readers.shutdownNow();
+        if (transformers != null) transformers.shutdownNow();
+        if (writers != null) writers.shutdownNow();
+        if (compressors != null) compressors.shutdownNow();
+    }
+
+    private static <T> Future<T> submit(ExecutorService executor, Callable<T> task) {
+        if (executor != null) {
+            return executor.submit(task);
+        }
+        var future = new FutureTask<>(task);
+        future.run();
+        return future;
+    }
+
+}
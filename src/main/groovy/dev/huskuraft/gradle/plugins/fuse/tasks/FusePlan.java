@@ -0,0 +1,229 @@
+package dev.huskuraft.gradle.plugins.fuse.tasks;
+
+import dev.huskuraft.gradle.plugins.fuse.merger.Merger;
+import dev.huskuraft.gradle.plugins.fuse.relocation.Relocation;
+import dev.huskuraft.gradle.plugins.fuse.relocation.Relocator;
+import dev.huskuraft.gradle.plugins.fuse.utils.FileTools;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+/**
+ * What fusing would do, without doing it. Only the central directory and the manifest of every fuse are read,
+ * relocations are applied to paths, and entries are compared by size and CRC-32, so the plan is built in
+ * milliseconds even for large jars. Class contents are not remapped, so references inside classes are not checked.
+ */
+final class FusePlan {
+
+    private final List<Source> sources = new ArrayList<>();
+    private final Manifest manifest = new Manifest();
+    private final Map<String, List<Relocation>> conflictRelocations;
+    private final Map<String, PlannedEntry> entries = new LinkedHashMap<>();
+
+    private FusePlan(Map<String, List<Relocation>> conflictRelocations) {
+        this.conflictRelocations = conflictRelocations;
+    }
+
+    /**
+     * Build the plan of a fuse
+     *
+     * @param fuses             - The fuses, in the declared order
+     * @param mergers           - The mergers, matched against the path of every entry
+     * @param ignoredPackages   - The packages that are never relocated automatically
+     * @param relocateConflicts - Plan the relocation of packages whose classes differ between fuses
+     * @return - The plan
+     */
+    static FusePlan of(@NotNull List<Fuse> fuses, @NotNull List<Merger> mergers, @NotNull List<String> ignoredPackages, boolean relocateConflicts) throws IOException {
+        var contents = new ArrayList<FuseContents>();
+        try {
+            for (var fuse : fuses) {
+                contents.add(read(fuse));
+            }
+            var plan = new FusePlan(relocateConflicts ? ConflictRelocations.find(contents, ignoredPackages) : Map.of());
+            for (var content : contents) {
+                plan.add(content, mergers);
+            }
+            return plan;
+        } finally {
+            for (var content : contents) {
+                content.close();
+            }
+        }
+    }
+
+    /**
+     * Read the central directory of a fuse, only the manifest is read from the entries
+     */
+    private static FuseContents read(Fuse fuse) throws IOException {
+        var relocator = new Relocator(List.of(fuse.relocations()));
+        var manifest = new Manifest();
+        var entries = new ArrayList<FuseEntry>();
+        var zipFile = FileTools.openCentralDirectory(fuse.root());
+        try {
+            var zipEntries = zipFile.getEntries();
+            while (zipEntries.hasMoreElements()) {
+                var zipEntry = zipEntries.nextElement();
+                if (zipEntry.getName().equalsIgnoreCase(JarFile.MANIFEST_NAME)) {
+                    try (var input = zipFile.getInputStream(zipEntry)) {
+                        manifest.read(input);
+                    }
+                } else if (!zipEntry.isDirectory()) {
+                    entries.add(FuseEntry.of(relocator.relocatePath(zipEntry.getName()), zipFile, zipEntry));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            zipFile.close();
+            throw e;
+        }
+        return new FuseContents(fuse, zipFile, manifest, entries);
+    }
+
+    private void add(FuseContents content, List<Merger> mergers) throws IOException {
+        var fuse = content.fuse();
+        sources.add(new Source(fuse.name(), fuse.root(), content.entries().size()));
+        MergeJarAction.mergeManifest(manifest, content.manifest());
+
+        var relocator = new Relocator(List.of(conflictRelocations.getOrDefault(fuse.name(), List.of())));
+        for (var entry : content.entries()) {
+            var name = relocator.relocatePath(entry.name());
+            var planned = entries.computeIfAbsent(name, PlannedEntry::new);
+            planned.contributions.add(new Contribution(fuse.name(), entry.size() + ":" + entry.crc()));
+            var element = new FuseEntryElement(entry.renamed(name));
+            for (var merger : mergers) {
+                if (merger.canMerge(element)) {
+                    planned.mergers.add(merger.getName());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return - The merged manifest attributes
+     */
+    Manifest getManifest() {
+        return manifest;
+    }
+
+    /**
+     * @return - Every path of the fused jar, in the order it would be written
+     */
+    Collection<PlannedEntry> getEntries() {
+        return entries.values();
+    }
+
+    /**
+     * @return - The paths contributed by several fuses with different content and no merger, only the last one is kept
+     */
+    List<PlannedEntry> getConflicts() {
+        return entries.values().stream().filter(entry -> entry.resolution() == Resolution.REPLACED).toList();
+    }
+
+    /**
+     * Write the plan as text, one line per source, manifest attribute, relocation and path
+     *
+     * @param file - The report file
+     */
+    void write(@NotNull File file) throws IOException {
+        var text = new StringBuilder();
+        text.append("Sources:\n");
+        for (var source : sources) {
+            text.append("  ").append(source.name()).append(": ").append(source.root().getName()).append(" (").append(source.entries()).append(" entries)\n");
+        }
+        text.append("Manifest:\n");
+        manifest.getMainAttributes().forEach((key, value) -> text.append("  ").append(key).append(": ").append(value).append('\n'));
+        if (!conflictRelocations.isEmpty()) {
+            text.append("Relocations:\n");
+            conflictRelocations.forEach((source, relocations) -> relocations.forEach(relocation ->
+                text.append("  ").append(relocation.pattern()).append(" -> ").append(relocation.relocatedPattern()).append(" (").append(source).append(")\n")));
+        }
+        text.append("Entries:\n");
+        for (var entry : entries.values()) {
+            text.append("  ").append(entry.path()).append(" <- ").append(String.join(", ", entry.sources()));
+            switch (entry.resolution()) {
+                case SINGLE -> {
+                }
+                case IDENTICAL -> text.append(" [identical]");
+                case MERGED -> text.append(" [merged by ").append(String.join(", ", entry.mergers)).append(']');
+                case REPLACED -> text.append(" [conflict, keeping ").append(entry.contributions.get(entry.contributions.size() - 1).source()).append(']');
+            }
+            text.append('\n');
+        }
+        FileTools.getOrCreate(file.getParentFile());
+        Files.writeString(file.toPath(), text, StandardCharsets.UTF_8);
+    }
+
+    enum Resolution {
+        /**
+         * Only one fuse contributes the path
+         */
+        SINGLE,
+        /**
+         * Every fuse contributes the same content, it is kept once
+         */
+        IDENTICAL,
+        /**
+         * The contributions are combined by a merger
+         */
+        MERGED,
+        /**
+         * The contributions differ, the one of the last fuse is kept, even if it matches a replaced one
+         */
+        REPLACED
+    }
+
+    /**
+     * A path of the fused jar and the fuses that contribute to it
+     */
+    static final class PlannedEntry {
+
+        private final String path;
+        private final List<Contribution> contributions = new ArrayList<>();
+        private final LinkedHashSet<String> mergers = new LinkedHashSet<>();
+
+        private PlannedEntry(String path) {
+            this.path = path;
+        }
+
+        String path() {
+            return path;
+        }
+
+        List<String> sources() {
+            return contributions.stream().map(Contribution::source).toList();
+        }
+
+        Resolution resolution() {
+            if (contributions.size() == 1) return Resolution.SINGLE;
+            if (!mergers.isEmpty()) return Resolution.MERGED;
+            if (contributions.stream().map(Contribution::hash).distinct().count() == 1) return Resolution.IDENTICAL;
+            return Resolution.REPLACED;
+        }
+    }
+
+    /**
+     * @param source - The name of the fuse
+     * @param hash   - The size and CRC-32 of the entry
+     */
+    private record Contribution(String source, String hash) {
+    }
+
+    /**
+     * @param name    - The name of the fuse
+     * @param root    - The archive of the fuse
+     * @param entries - The number of entries, without directories and the manifest
+     */
+    private record Source(String name, File root, int entries) {
+    }
+
+}
@@ -0,0 +1,236 @@
+package dev.huskuraft.gradle.plugins.fuse.tasks;
+
+import dev.huskuraft.gradle.plugins.fuse.merger.Merger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Everything {@link MergeJarAction} needs to fuse a jar, see {@link FuseJar} for the meaning of each option
+ *
+ * @param jarFile                - The jar to write
+ * @param tempDir                - The directory of the temporary files, deleted once the jar is written
+ * @param fuses                  - The fuses, in the declared order
+ * @param mergers                - The mergers, matched against the path of every entry
+ * @param ignoredPackages        - The packages that are never relocated automatically
+ * @param parallelism            - The number of threads reading and relocating fuses
+ * @param copyRawEntries         - Copy unchanged entries without inflating them
+ * @param relocateEmbeddedJars   - Relocate the classes of embedded jars
+ * @param relocateConflicts      - Relocate the packages whose classes differ between fuses
+ * @param preserveFileTimestamps - Keep the timestamps of the entries
+ * @param reproducibleFileOrder  - Sort the entries by path and the manifest attributes by name
+ * @param layout                 - The order of the entries of the jar
+ * @param storeThreshold         - The size below which entries are stored, 0 to compress every entry
+ * @param storeCompressedFormats - Store entries that are already compressed
+ * @param packageIndex           - Write a META-INF/INDEX.LIST, see {@link FuseJar#getPackageIndex()} for the caveats
+ * @param compressionLevel       - The deflate level of the compressed entries
+ * @param compressionThreads     - The number of threads compressing entries
+ * @param variants               - The variant jars written from the same merged entries
+ * @param memoryBudget           - The memory budget in bytes, a quarter of the maximum heap when 0
+ * @param cache                  - The relocation cache, or null to disable it
+ * @param reportFile             - The JSON report, or null to not write it
+ * @param traceFile              - The Chrome trace, or null to not write it
+ */
+record FuseSettings(
+    @NotNull File jarFile,
+    @NotNull File tempDir,
+    @NotNull List<Fuse> fuses,
+    @NotNull List<Merger> mergers,
+    @NotNull List<String> ignoredPackages,
+    int parallelism,
+    boolean copyRawEntries,
+    boolean relocateEmbeddedJars,
+    boolean relocateConflicts,
+    boolean preserveFileTimestamps,
+    boolean reproducibleFileOrder,
+    @NotNull FuseLayout layout,
+    int storeThreshold,
+    boolean storeCompressedFormats,
+    boolean packageIndex,
+    int compressionLevel,
+    int compressionThreads,
+    @NotNull List<FuseOutput> variants,
+    long memoryBudget,
+    @Nullable FuseCache cache,
+    @Nullable File reportFile,
+    @Nullable File traceFile
+) {
+
+    /**
+     * Start building settings. Every option must be set, only the cache, the report and the trace are optional.
+     * The defaults are the conventions of {@link FuseJar}.
+     *
+     * @param jarFile - The jar to write
+     * @param tempDir - The directory of the temporary files
+     * @param fuses   - The fuses, in the declared order
+     */
+    static Builder builder(@NotNull File jarFile, @NotNull File tempDir, @NotNull List<Fuse> fuses) {
+        return new Builder(jarFile, tempDir, fuses);
+    }
+
+    static final class Builder {
+
+        private final File jarFile;
+        private final File tempDir;
+        private final List<Fuse> fuses;
+        private List<Merger> mergers;
+        private List<String> ignoredPackages;
+        private Integer parallelism;
+        private Boolean copyRawEntries;
+        private Boolean relocateEmbeddedJars;
+        private Boolean relocateConflicts;
+        private Boolean preserveFileTimestamps;
+        private Boolean reproducibleFileOrder;
+        private FuseLayout layout;
+        private Integer storeThreshold;
+        private Boolean storeCompressedFormats;
+        private Boolean packageIndex;
+        private Integer compressionLevel;
+        private Integer compressionThreads;
+        private List<FuseOutput> variants;
+        private Long memoryBudget;
+        private FuseCache cache;
+        private File reportFile;
+        private File traceFile;
+
+        private Builder(File jarFile, File tempDir, List<Fuse> fuses) {
+            this.jarFile = jarFile;
+            this.tempDir = tempDir;
+            this.fuses = fuses;
+        }
+
+        Builder mergers(@NotNull List<Merger> mergers) {
+            this.mergers = mergers;
+            return this;
+        }
+
+        Builder ignoredPackages(@NotNull List<String> ignoredPackages) {
+            this.ignoredPackages = ignoredPackages;
+            return this;
+        }
+
+        Builder parallelism(int parallelism) {
+            this.parallelism = parallelism;
+            return this;
+        }
+
+        Builder copyRawEntries(boolean copyRawEntries) {
+            this.copyRawEntries = copyRawEntries;
+            return this;
+        }
+
+        Builder relocateEmbeddedJars(boolean relocateEmbeddedJars) {
+            this.relocateEmbeddedJars = relocateEmbeddedJars;
+            return this;
+        }
+
+        Builder relocateConflicts(boolean relocateConflicts) {
+            this.relocateConflicts = relocateConflicts;
+            return this;
+        }
+
+        Builder preserveFileTimestamps(boolean preserveFileTimestamps) {
+            this.preserveFileTimestamps = preserveFileTimestamps;
+            return this;
+        }
+
+        Builder reproducibleFileOrder(boolean reproducibleFileOrder) {
+            this.reproducibleFileOrder = reproducibleFileOrder;
+            return this;
+        }
+
+        Builder layout(@NotNull FuseLayout layout) {
+            this.layout = layout;
+            return this;
+        }
+
+        Builder storeThreshold(int storeThreshold) {
+            this.storeThreshold = storeThreshold;
+            return this;
+        }
+
+        Builder storeCompressedFormats(boolean storeCompressedFormats) {
+            this.storeCompressedFormats = storeCompressedFormats;
+            return this;
+        }
+
+        Builder packageIndex(boolean packageIndex) {
+            this.packageIndex = packageIndex;
+            return this;
+        }
+
+        Builder compressionLevel(int compressionLevel) {
+            this.compressionLevel = compressionLevel;
+            return this;
+        }
+
+        Builder compressionThreads(int compressionThreads) {
+            this.compressionThreads = compressionThreads;
+            return this;
+        }
+
+        Builder variants(@NotNull List<FuseOutput> variants) {
+            this.variants = variants;
+            return this;
+        }
+
+        Builder memoryBudget(long memoryBudget) {
+            this.memoryBudget = memoryBudget;
+            return this;
+        }
+
+        Builder cache(@Nullable FuseCache cache) {
+            this.cache = cache;
+            return this;
+        }
+
+        Builder reportFile(@Nullable File reportFile) {
+            this.reportFile = reportFile;
+            return this;
+        }
+
+        Builder traceFile(@Nullable File traceFile) {
+            this.traceFile = traceFile;
+            return this;
+        }
+
+        /**
+         * @throws IllegalStateException - If an option is not set
+         */
+        FuseSettings build() {
+            return new FuseSettings(
+                jarFile,
+                tempDir,
+                List.copyOf(fuses),
+                List.copyOf(require(mergers, "mergers")),
+                List.copyOf(require(ignoredPackages, "ignoredPackages")),
+                require(parallelism, "parallelism"),
+                require(copyRawEntries, "copyRawEntries"),
+                require(relocateEmbeddedJars, "relocateEmbeddedJars"),
+                require(relocateConflicts, "relocateConflicts"),
+                require(preserveFileTimestamps, "preserveFileTimestamps"),
+                require(reproducibleFileOrder, "reproducibleFileOrder"),
+                require(layout, "layout"),
+                require(storeThreshold, "storeThreshold"),
+                require(storeCompressedFormats, "storeCompressedFormats"),
+                require(packageIndex, "packageIndex"),
+                require(compressionLevel, "compressionLevel"),
+                require(compressionThreads, "compressionThreads"),
+                List.copyOf(require(variants, "variants")),
+                require(memoryBudget, "memoryBudget"),
+                cache,
+                reportFile,
+                traceFile);
+        }
+
+        private static <T> T require(T value, String option) {
+            if (value == null) {
+                throw new IllegalStateException("The " + option + " option of the fuse settings is not set");
+            }
+            return value;
+        }
+    }
+
+}
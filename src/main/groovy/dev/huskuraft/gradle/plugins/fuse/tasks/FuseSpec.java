@@ -4,6 +4,10 @@ import dev.huskuraft.gradle.plugins.fuse.config.FuseSource;
 import org.gradle.api.Action;
 import org.gradle.api.Project;
 import org.gradle.api.file.CopySpec;
+import org.gradle.api.file.RegularFile;
+import org.gradle.api.provider.Provider;
+import org.gradle.api.tasks.TaskProvider;
+import org.gradle.api.tasks.bundling.AbstractArchiveTask;
 
 public interface FuseSpec extends CopySpec {
     FuseSpec includeJar(Action<FuseSource> closure);
@@ -14,4 +18,12 @@ public interface FuseSpec extends CopySpec {
             fuseSourceSpec.task(task);
         });
     }
+
+    default FuseSpec includeJar(TaskProvider<? extends AbstractArchiveTask> task) {
+        return includeJar(fuseSourceSpec -> fuseSourceSpec.task(task));
+    }
+
+    default FuseSpec includeJar(Provider<RegularFile> archive) {
+        return includeJar(fuseSourceSpec -> fuseSourceSpec.archive(archive));
+    }
 }
@@ -0,0 +1,49 @@
+package dev.huskuraft.gradle.plugins.fuse.tasks;
+
+import org.gradle.workers.WorkAction;
+
+/**
+ * Fuses a jar in a Gradle worker, so independent fuse tasks can run at the same time
+ */
+public abstract class FuseWorkAction implements WorkAction<FuseWorkParameters> {
+
+    @Override
+    public void execute() {
+        new MergeJarAction(settings(getParameters())).run();
+    }
+
+    /**
+     * @param parameters - The parameters of the work
+     * @return - The settings of the merge
+     */
+    static FuseSettings settings(FuseWorkParameters parameters) {
+        var cacheDirectory = parameters.getCacheDirectory().getAsFile().getOrNull();
+        var cache = cacheDirectory == null ? null : new FuseCache(cacheDirectory, parameters.getCacheSize().get(), parameters.getCacheVersion().get());
+
+        return FuseSettings.builder(
+                parameters.getArchiveFile().get().getAsFile(),
+                parameters.getTemporaryDir().get().getAsFile(),
+                parameters.getFuses().get())
+            .mergers(parameters.getMergers().get())
+            .ignoredPackages(parameters.getDuplicateRelocations().get())
+            .parallelism(parameters.getParallelism().get())
+            .copyRawEntries(parameters.getCopyRawEntries().get())
+            .relocateEmbeddedJars(parameters.getRelocateEmbeddedJars().get())
+            .relocateConflicts(parameters.getRelocateConflicts().get())
+            .preserveFileTimestamps(parameters.getPreserveFileTimestamps().get())
+            .reproducibleFileOrder(parameters.getReproducibleFileOrder().get())
+            .layout(parameters.getLayout().get())
+            .storeThreshold(parameters.getStoreThreshold().get())
+            .storeCompressedFormats(parameters.getStoreCompressedFormats().get())
+            .packageIndex(parameters.getPackageIndex().get())
+            .compressionLevel(parameters.getCompressionLevel().get())
+            .compressionThreads(parameters.getCompressionThreads().get())
+            .variants(parameters.getVariants().get())
+            .memoryBudget(parameters.getMemoryBudget().getOrElse(0L))
+            .cache(cache)
+            .reportFile(parameters.getReportFile().getAsFile().getOrNull())
+            .traceFile(parameters.getTraceFile().getAsFile().getOrNull())
+            .build();
+    }
+
+}
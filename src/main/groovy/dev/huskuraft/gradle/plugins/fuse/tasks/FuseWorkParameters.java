@@ -0,0 +1,70 @@
+package dev.huskuraft.gradle.plugins.fuse.tasks;
+
+import dev.huskuraft.gradle.plugins.fuse.merger.Merger;
+import org.gradle.api.file.DirectoryProperty;
+import org.gradle.api.file.RegularFileProperty;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.workers.WorkParameters;
+
+/**
+ * Everything a worker needs to fuse a jar. Values are serialized when the work is submitted,
+ * so fuses and mergers must be serializable.
+ */
+public interface FuseWorkParameters extends WorkParameters {
+
+    RegularFileProperty getArchiveFile();
+
+    DirectoryProperty getTemporaryDir();
+
+    ListProperty<Fuse> getFuses();
+
+    ListProperty<Merger> getMergers();
+
+    ListProperty<String> getDuplicateRelocations();
+
+    Property<Integer> getParallelism();
+
+    Property<Boolean> getCopyRawEntries();
+
+    Property<Boolean> getRelocateEmbeddedJars();
+
+    Property<Boolean> getRelocateConflicts();
+
+    Property<Boolean> getPreserveFileTimestamps();
+
+    Property<Boolean> getReproducibleFileOrder();
+
+    Property<FuseLayout> getLayout();
+
+    Property<Integer> getStoreThreshold();
+
+    Property<Boolean> getStoreCompressedFormats();
+
+    Property<Boolean> getPackageIndex();
+
+    Property<Integer> getCompressionLevel();
+
+    Property<Integer> getCompressionThreads();
+
+    ListProperty<FuseOutput> getVariants();
+
+    /**
+     * @return - The memory budget in bytes, a quarter of the maximum heap when not set
+     */
+    Property<Long> getMemoryBudget();
+
+    /**
+     * @return - The directory of the relocation cache, the cache is disabled when not set
+     */
+    DirectoryProperty getCacheDirectory();
+
+    Property<Long> getCacheSize();
+
+    Property<String> getCacheVersion();
+
+    RegularFileProperty getReportFile();
+
+    RegularFileProperty getTraceFile();
+
+}
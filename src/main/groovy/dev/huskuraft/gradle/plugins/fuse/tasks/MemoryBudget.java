@@ -0,0 +1,199 @@
+package dev.huskuraft.gradle.plugins.fuse.tasks;
+
+import dev.huskuraft.gradle.plugins.fuse.utils.FileTools;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounds the bytes held in memory by the entries of a fuse. Content is kept in memory while the budget allows it,
+ * beyond it content is spilled to temporary files and read back when needed. Bytes stay reserved until the content
+ * is evicted, see {@link FuseEntry#evict()}, or until the scope that created it is closed, see {@link #scope()}.
+ */
+final class MemoryBudget implements Closeable {
+
+    private final MemoryBudget parent;
+    private final long limit;
+    private final File directory;
+    private final AtomicLong reserved = new AtomicLong();
+    private final AtomicLong peak = new AtomicLong();
+    private final AtomicLong spilledEntries = new AtomicLong();
+    private final AtomicLong spilledBytes = new AtomicLong();
+    private final AtomicLong files = new AtomicLong();
+    private volatile boolean closed;
+
+    /**
+     * @param limit     - The maximum number of bytes held in memory
+     * @param directory - The directory content is spilled to, created on the first spill and deleted when closed
+     */
+    MemoryBudget(long limit, @NotNull File directory) {
+        this(null, limit, directory);
+    }
+
+    private MemoryBudget(MemoryBudget parent, long limit, File directory) {
+        this.parent = parent;
+        this.limit = limit;
+        this.directory = directory;
+    }
+
+    /**
+     * Reserve memory for content about to be kept in memory
+     *
+     * @param bytes - The size of the content
+     * @return - True if the content fits in the budget and was reserved, false if it must not be kept in memory
+     */
+    boolean reserve(long bytes) {
+        while (true) {
+            var current = reserved.get();
+            if (current + bytes > limit) {
+                return false;
+            }
+            if (reserved.compareAndSet(current, current + bytes)) {
+                break;
+            }
+        }
+        if (parent != null && !parent.reserve(bytes)) {
+            reserved.addAndGet(-bytes);
+            return false;
+        }
+        peak.accumulateAndGet(reserved.get(), Math::max);
+        return true;
+    }
+
+    /**
+     * Release memory reserved for content that is no longer held
+     *
+     * @param bytes - The size of the content
+     */
+    void release(long bytes) {
+        if (closed) {
+            return;
+        }
+        reserved.addAndGet(-bytes);
+        if (parent != null) {
+            parent.release(bytes);
+        }
+    }
+
+    /**
+     * Create an entry with new content, kept in memory if it fits in the budget or spilled to disk
+     *
+     * @param name    - The path of the entry inside the archive
+     * @param content - The uncompressed bytes of the entry
+     * @param time    - The last modified time of the entry
+     */
+    FuseEntry entry(@NotNull String name, byte @NotNull [] content, long time) throws IOException {
+        if (reserve(content.length)) {
+            return FuseEntry.of(name, content, time);
+        }
+        var file = newFile();
+        Files.write(file.toPath(), content);
+        spilled(content.length);
+        return FuseEntry.of(name, file, content.length, time, this);
+    }
+
+    /**
+     * Create an entry whose content is written by the given writer, the content switches to a file
+     * as soon as it outgrows the budget, so it is never held in memory as a whole beyond the budget
+     *
+     * @param name   - The path of the entry inside the archive
+     * @param time   - The last modified time of the entry
+     * @param writer - Writes the uncompressed bytes of the entry
+     */
+    FuseEntry entry(@NotNull String name, long time, @NotNull ContentWriter writer) throws IOException {
+        var file = newFile();
+        var threshold = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(0, available()));
+        var output = new DeferredFileOutputStream(threshold, file);
+        try (output) {
+            writer.write(output);
+        }
+        if (output.isInMemory() && reserve(output.getByteCount())) {
+            return FuseEntry.of(name, output.getData(), time);
+        }
+        if (output.isInMemory()) {
+            Files.write(file.toPath(), output.getData());
+        }
+        spilled(output.getByteCount());
+        return FuseEntry.of(name, file, output.getByteCount(), time, this);
+    }
+
+    /**
+     * Create a budget for entries that are dropped before this budget is closed, such as the entries of a single merge.
+     * Its reservations count against this budget, and are all released when the scope is closed.
+     *
+     * @return - The scope, spilling to a sub directory of this budget
+     */
+    MemoryBudget scope() {
+        return new MemoryBudget(this, limit, new File(directory, "scope-" + files.incrementAndGet()));
+    }
+
+    /**
+     * @return - The bytes held in memory
+     */
+    long getReserved() {
+        return reserved.get();
+    }
+
+    /**
+     * @return - The most bytes held in memory at once
+     */
+    long getPeak() {
+        return peak.get();
+    }
+
+    long getLimit() {
+        return limit;
+    }
+
+    long getSpilledEntries() {
+        return spilledEntries.get();
+    }
+
+    long getSpilledBytes() {
+        return spilledBytes.get();
+    }
+
+    /**
+     * Release every reservation and delete every spilled file
+     */
+    @Override
+    public void close() {
+        closed = true;
+        var bytes = reserved.getAndSet(0);
+        if (parent != null) {
+            parent.release(bytes);
+        }
+        FileUtils.deleteQuietly(directory);
+    }
+
+    private long available() {
+        var available = limit - reserved.get();
+        return parent != null ? Math.min(available, parent.available()) : available;
+    }
+
+    private File newFile() throws IOException {
+        FileTools.getOrCreate(directory);
+        return new File(directory, files.incrementAndGet() + ".bin");
+    }
+
+    private void spilled(long bytes) {
+        spilledEntries.incrementAndGet();
+        spilledBytes.addAndGet(bytes);
+        if (parent != null) {
+            parent.spilled(bytes);
+        }
+    }
+
+    @FunctionalInterface
+    interface ContentWriter {
+        void write(OutputStream output) throws IOException;
+    }
+
+}
@@ -1,185 +1,706 @@
 package dev.huskuraft.gradle.plugins.fuse.tasks;
 
-import com.hypherionmc.jarmanager.JarManager;
-import com.hypherionmc.jarrelocator.Relocation;
 import dev.huskuraft.gradle.plugins.fuse.merger.Merger;
-import dev.huskuraft.gradle.plugins.fuse.merger.MergerContext;
+import dev.huskuraft.gradle.plugins.fuse.merger.MergerContribution;
+import dev.huskuraft.gradle.plugins.fuse.relocation.Relocator;
 import dev.huskuraft.gradle.plugins.fuse.utils.FileTools;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
 import org.apache.commons.io.FileUtils;
-import org.gradle.api.internal.file.DefaultFileTreeElement;
-import org.gradle.api.internal.file.copy.CopyAction;
-import org.gradle.api.internal.file.copy.CopyActionProcessingStream;
-import org.gradle.api.tasks.WorkResult;
-import org.gradle.api.tasks.WorkResults;
+import org.gradle.api.GradleException;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.*;
-import java.nio.file.StandardCopyOption;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarFile;
 import java.util.jar.Manifest;
-import java.util.zip.Deflater;
 
-class MergeJarAction implements CopyAction {
+class MergeJarAction {
+
+    private static final Logger LOGGER = Logging.getLogger(MergeJarAction.class);
+
+    private static final String PACKAGE_INDEX_NAME = "META-INF/INDEX.LIST";
+
+    private static final List<EntryKind> STARTUP_ORDER = List.of(
+        EntryKind.MANIFEST,
+        EntryKind.DIRECTORY,
+        EntryKind.SERVICE,
+        EntryKind.LOADER_METADATA,
+        EntryKind.MIXIN_CONFIG,
+        EntryKind.ACCESS_WIDENER,
+        EntryKind.REFMAP,
+        EntryKind.CLASS,
+        EntryKind.EMBEDDED_JAR,
+        EntryKind.TEXT,
+        EntryKind.BINARY
+    );
+
+    private final FuseSettings settings;
+    private final FuseMetrics metrics = new FuseMetrics();
+    private final MemoryBudget budget;
+
+    MergeJarAction(FuseSettings settings) {
+        this.settings = settings;
+        this.budget = new MemoryBudget(settings.memoryBudget() > 0 ? settings.memoryBudget() : Runtime.getRuntime().maxMemory() / 4, new File(settings.tempDir(), "spill"));
+    }
 
-    public static final String FUSE_MERGE_DIR = "merged";
+    /**
+     * Fuse the jar and write the metrics, failures are reported as a {@link GradleException}
+     */
+    void run() {
+        try {
+            FileTools.createOrReCreate(settings.tempDir());
+            mergeFuse();
+            FileUtils.deleteQuietly(settings.tempDir());
+            writeMetrics();
+        } catch (IOException e) {
+            throw new GradleException("Failed to fuse " + settings.jarFile().getName() + ": " + e.getMessage(), e);
+        }
+    }
 
-    public static final String FUSE_UNPACKED_SUFFIX = "unpacked";
+    /**
+     * @return - The timings and counters of this fuse
+     */
+    FuseMetrics getMetrics() {
+        return metrics;
+    }
 
-    private final Map<String, String> ignoredDuplicateRelocations = new HashMap<>();
-    private final Map<String, String> removeDuplicateRelocationResources = new HashMap<>();
-    private final List<Relocation> relocations = new ArrayList<>();
+    private void writeMetrics() throws IOException {
+        metrics.log(LOGGER);
+        if (settings.reportFile() != null) {
+            metrics.writeReport(settings.reportFile());
+        }
+        if (settings.traceFile() != null) {
+            metrics.writeTrace(settings.traceFile());
+            LOGGER.lifecycle("Fuse trace written to {}", settings.traceFile());
+        }
+    }
 
-    private final File jarFile;
-    private final File tempDir;
-    private final JarManager jarManager;
-    private final List<Fuse> fuses;
-    private final List<Merger> mergers;
-    private final List<String> ignoredPackages;
+    /**
+     * Stream every input straight into the output jar. Entries are only ever held in memory,
+     * nothing is unpacked to disk. The fuses are read and relocated by the stages of a {@link FusePipeline},
+     * each fuse is merged as soon as it is read while the next ones are still being read. The variants are written
+     * from the same merged entries at the same time as the jar, so every input is read and relocated once
+     * whatever the number of jars.
+     */
+    public void mergeFuse() throws IOException {
+        try (var pipeline = new FusePipeline(Math.min(settings.parallelism(), settings.fuses().size()), settings.parallelism(), settings.variants().size(), settings.compressionThreads())) {
+            var merge = new Merge(pipeline);
+            var contents = readFuses(pipeline, settings.relocateConflicts() ? null : merge);
+            try {
+                if (settings.relocateConflicts()) {
+                    for (var content : relocateConflicts(contents)) {
+                        merge.add(content);
+                    }
+                }
+                try (var merged = merge.finish()) {
+                    var writes = new ArrayList<Future<Void>>(settings.variants().size());
+                    for (var variant : settings.variants()) {
+                        writes.add(pipeline.write(() -> {
+                            writeVariant(pipeline, variant, merged);
+                            return null;
+                        }));
+                    }
+                    writeJar(pipeline, settings.jarFile(), merged.manifest(), merged.entries());
+                    for (var write : writes) {
+                        FusePipeline.join(write);
+                    }
+                    report(merged.index());
+                }
+            } finally {
+                closeAll(contents);
+            }
+        } finally {
+            budget.close();
+        }
 
-    MergeJarAction(File jarFile, File tempDir, JarManager jarManager, List<Fuse> fuses, List<Merger> mergers, List<String> ignoredPackages) {
-        this.jarFile = jarFile;
-        this.tempDir = tempDir;
-        this.jarManager = jarManager;
-        this.fuses = fuses;
-        this.mergers = mergers;
-        this.ignoredPackages = ignoredPackages;
+        if (settings.cache() != null) {
+            settings.cache().evict();
+        }
+        metrics.memory(budget);
+        metrics.finish();
     }
 
-    @Override
-    public WorkResult execute(CopyActionProcessingStream stream) {
-        try {
-            FileTools.createOrReCreate(tempDir);
-            mergeFuse();
-            FileUtils.deleteQuietly(tempDir);
-        } catch (IOException e) {
-            e.printStackTrace();
-            return WorkResults.didWork(false);
+    /**
+     * Merge the entries of every fuse, in the declared order. Entries accepted by a merger are combined,
+     * an entry identical to the one kept for its path is dropped, and any other entry of a later fuse replaces the kept one.
+     * The memory held by the merged entries is released when the result is closed.
+     */
+    MergedContents mergeContents(List<FuseContents> contents) throws IOException {
+        try (var pipeline = new FusePipeline(0, settings.parallelism(), 0, 0)) {
+            var merge = new Merge(pipeline);
+            for (var content : contents) {
+                merge.add(content);
+            }
+            return merge.finish();
         }
-        return WorkResults.didWork(true);
     }
 
-    public void mergeFuse() throws IOException {
-        var unpackedDirs = getUnpackedDirs();
-        var mergedDir = getMergeDir();
-        var mergedManifest = mergeManifestsInMetaInf(unpackedDirs);
+    private void report(FuseIndex index) throws IOException {
+        for (var conflict : index.getConflicts()) {
+            LOGGER.warn("Conflicting entry {} in {} and {}, keeping the one from {}", conflict.path(), conflict.previous(), conflict.current(), conflict.current());
+        }
+        for (var jars : index.getSharedEmbeddedJars()) {
+            var paths = jars.stream().map(jar -> jar.entry().name() + " (" + jar.source() + ")").toList();
+            LOGGER.lifecycle("Identical embedded jar stored {} times, {} bytes each: {}", jars.size(), jars.get(0).entry().size(), String.join(", ", paths));
+        }
+        if (index.getDuplicateEntries() > 0) {
+            LOGGER.lifecycle("Deduplicated {} identical entries across fuses, saving {} bytes", index.getDuplicateEntries(), index.getDuplicateBytes());
+        }
+    }
 
-        for (var dir : unpackedDirs) {
-            moveDirectory(dir, mergedDir);
+    /**
+     * Read and relocate every fuse, see {@link #readFuses(FusePipeline, Merge)}
+     */
+    List<FuseContents> readFuses() throws IOException {
+        try (var pipeline = new FusePipeline(Math.min(settings.parallelism(), settings.fuses().size()), settings.parallelism(), 0, 0)) {
+            return readFuses(pipeline, null);
         }
+    }
 
-        writeManifestInMetaInf(mergedDir, mergedManifest);
+    /**
+     * Read and relocate every fuse on the readers of the pipeline. Each fuse is independent until the merge,
+     * the fuses are handed to the merge in the declared order as soon as they are read, so the output stays deterministic.
+     *
+     * @param merge - The merge the fuses are added to, or null to only read them
+     * @return - The contents of every fuse, in the declared order
+     */
+    private List<FuseContents> readFuses(FusePipeline pipeline, @Nullable Merge merge) throws IOException {
+        if (settings.fuses().isEmpty()) {
+            throw new IllegalArgumentException("No input jars were provided.");
+        }
+        for (var fuse : settings.fuses()) {
+            if (!FileTools.exists(fuse.root())) {
+                throw new FileNotFoundException("Fuse artifact " + fuse.root().getName() + " does not exist!");
+            }
+        }
 
-        jarManager.setCompressionLevel(Deflater.BEST_COMPRESSION);
-        jarManager.remapAndPack(mergedDir, jarFile, relocations);
+        var span = metrics.start(FuseMetrics.READ, null);
+        var futures = new ArrayList<Future<FuseContents>>();
+        for (var fuse : settings.fuses()) {
+            futures.add(pipeline.read(() -> readEntries(fuse, pipeline)));
+        }
+        var contents = new ArrayList<FuseContents>();
+        try {
+            for (var future : futures) {
+                var content = FusePipeline.join(future);
+                contents.add(content);
+                // the read phase ends with the last fuse, before it is merged
+                if (contents.size() == futures.size()) {
+                    span.close();
+                }
+                if (merge != null) {
+                    merge.add(content);
+                }
+            }
+            return contents;
+        } catch (IOException | RuntimeException e) {
+            closeCompleted(futures.subList(contents.size(), futures.size()));
+            try {
+                closeAll(contents);
+            } catch (IOException exception) {
+                e.addSuppressed(exception);
+            }
+            throw e;
+        } finally {
+            span.close();
+        }
+    }
 
+    private void closeCompleted(List<Future<FuseContents>> futures) {
+        for (var future : futures) {
+            if (future.isDone() && !future.isCancelled()) {
+                try {
+                    future.get().close();
+                } catch (Exception ignored) {
+                }
+            } else {
+                future.cancel(true);
+            }
+        }
     }
 
+    void closeAll(List<FuseContents> contents) throws IOException {
+        IOException exception = null;
+        for (var content : contents) {
+            try {
+                content.close();
+            } catch (IOException e) {
+                if (exception == null) exception = e;
+                else exception.addSuppressed(e);
+            }
+        }
+        if (exception != null) throw exception;
+    }
 
-    public void moveDirectory(File sourceDir, File outDir) throws IOException {
-        if (!FileTools.exists(sourceDir))
-            return;
+    /**
+     * Read all entries of a fuse, every class is remapped by the relocations of the fuse in a single pass. When the cache is enabled,
+     * the relocated archive is stored once and reused as long as the fuse does not change.
+     */
+    private FuseContents readEntries(Fuse fuse, FusePipeline pipeline) throws IOException {
+        var span = metrics.start(FuseMetrics.READ, fuse.name());
+        try {
+            var contents = readCachedEntries(fuse, pipeline);
+            metrics.source(fuse.name()).read(contents.entries().size(), fuse.root().length());
+            return contents;
+        } finally {
+            span.close();
+        }
+    }
 
-        var files = sourceDir.listFiles();
-        if (files == null)
-            return;
+    private FuseContents readCachedEntries(Fuse fuse, FusePipeline pipeline) throws IOException {
+        var stages = List.of(fuse.relocations());
+        var relocator = new Relocator(stages);
+        if (settings.cache() == null || relocator.isEmpty()) {
+            return readEntries(fuse, fuse.root(), relocator, budget, pipeline);
+        }
 
-        for (var file : files) {
-            var outPath = new File(outDir, file.getName());
+        var key = settings.cache().key(fuse.root(), stages, settings.relocateEmbeddedJars(), settings.compressionLevel());
+        var cached = settings.cache().get(key);
+        if (cached == null) {
+            cached = settings.cache().put(key, file -> writeRelocatedJar(fuse, relocator, file, pipeline));
+        } else {
+            metrics.source(fuse.name()).cacheHit();
+        }
+        return readEntries(fuse, cached, new Relocator(List.of()), budget, pipeline);
+    }
 
-            if (file.isDirectory()) {
-                moveDirectory(file, outPath);
-            }
+    /**
+     * Read all entries of an archive. The archive is opened once and stays open until the merge is done,
+     * entries that are not relocated are not read at all, they keep pointing at the opened archive.
+     * Classes are only remapped when their constant pool mentions a relocated package, the others are kept as they are.
+     * Classes and embedded jars are inflated here and relocated by the transformers of the pipeline, while the next entries are read.
+     */
+    private FuseContents readEntries(Fuse fuse, File archive, Relocator relocator, MemoryBudget budget, FusePipeline pipeline) throws IOException {
+        var manifest = new Manifest();
+        var transformed = new ArrayList<Future<FuseEntry>>();
+        var relocated = new AtomicInteger();
+        var zipFile = FileTools.openZipFile(archive);
+        var span = relocator.isEmpty() ? null : metrics.start(FuseMetrics.RELOCATE, fuse.name());
+        try {
+            var zipEntries = zipFile.getEntries();
+            while (zipEntries.hasMoreElements()) {
+                var zipEntry = zipEntries.nextElement();
 
-            if (file.isFile()) {
-                var merged = false;
-                for (var merger : mergers) {
-                    if (merger.canMerge(DefaultFileTreeElement.of(file, null))) {
-                        FileTools.getOrCreateFile(outPath);
-                        merger.merge(
-                            new MergerContext(new FileInputStream(file), new FileOutputStream(outPath, true))
-                        );
-                        merged = true;
+                if (zipEntry.getName().equalsIgnoreCase(JarFile.MANIFEST_NAME)) {
+                    try (var input = zipFile.getInputStream(zipEntry)) {
+                        manifest.read(input);
                     }
+                    continue;
                 }
-                if (!merged) {
-                    FileTools.moveFileInternal(file, outPath, StandardCopyOption.REPLACE_EXISTING);
+
+                var name = relocator.relocatePath(zipEntry.getName());
+                if (!zipEntry.isDirectory() && relocator.canRelocateClass(zipEntry.getName())) {
+                    byte[] content;
+                    try (var input = zipFile.getInputStream(zipEntry)) {
+                        content = input.readAllBytes();
+                    }
+                    transformed.add(pipeline.transform(() -> {
+                        if (!relocator.references(content)) {
+                            return FuseEntry.of(name, zipFile, zipEntry, budget);
+                        }
+                        relocated.incrementAndGet();
+                        return budget.entry(name, relocator.relocateClass(content), zipEntry.getTime());
+                    }));
+                } else if (settings.relocateEmbeddedJars() && !relocator.isEmpty() && FileTools.isEmbeddedJar(zipEntry.getName())) {
+                    transformed.add(pipeline.transform(() -> budget.entry(name, zipEntry.getTime(), output -> {
+                        try (var input = zipFile.getInputStream(zipEntry)) {
+                            relocateEmbeddedJar(input, relocator, output);
+                        }
+                    })));
+                } else if (FuseCache.isRelocated(zipEntry)) {
+                    transformed.add(CompletableFuture.completedFuture(FuseEntry.changed(name, zipFile, zipEntry, budget)));
+                } else {
+                    transformed.add(CompletableFuture.completedFuture(FuseEntry.of(name, zipFile, zipEntry, budget)));
                 }
             }
+            var entries = new ArrayList<FuseEntry>(transformed.size());
+            for (var entry : transformed) {
+                entries.add(FusePipeline.join(entry));
+            }
+            metrics.source(fuse.name()).relocated(relocated.get());
+            return new FuseContents(fuse, zipFile, manifest, entries);
+        } catch (IOException | RuntimeException e) {
+            zipFile.close();
+            throw e;
+        } finally {
+            if (span != null) span.close();
         }
     }
 
-    private List<File> getUnpackedDirs() throws IOException {
-        if (fuses.isEmpty()) {
-            throw new IllegalArgumentException("No input jars were provided.");
+    /**
+     * Relocate the packages whose classes differ between fuses, in every fuse that contains them.
+     * The packages listed in the duplicate relocations are never relocated, they are merged as usual.
+     * Only classes that mention a relocated package are remapped, other entries are only moved.
+     */
+    List<FuseContents> relocateConflicts(List<FuseContents> contents) throws IOException {
+        var relocations = ConflictRelocations.find(contents, settings.ignoredPackages());
+        var relocated = new ArrayList<FuseContents>(contents.size());
+        for (var content : contents) {
+            var fuseRelocations = relocations.get(content.fuse().name());
+            if (fuseRelocations == null) {
+                relocated.add(content);
+                continue;
+            }
+            for (var relocation : fuseRelocations) {
+                LOGGER.lifecycle("Relocating conflicting package {} of {} to {}", relocation.pattern(), content.fuse().name(), relocation.relocatedPattern());
+            }
+            relocated.add(relocateEntries(content, new Relocator(List.of(fuseRelocations))));
         }
-        var fuseDirs = new ArrayList<File>();
-        for (var fuse : fuses) {
-            if (!FileTools.exists(fuse.root())) {
-                throw new FileNotFoundException("Fuse artifact " + fuse.root().getName() + " does not exist!");
+        return relocated;
+    }
+
+    private FuseContents relocateEntries(FuseContents content, Relocator relocator) throws IOException {
+        var entries = new ArrayList<FuseEntry>(content.entries().size());
+        var span = metrics.start(FuseMetrics.RELOCATE, content.fuse().name());
+        try {
+            var classes = relocateEntries(content.entries(), relocator, entries, budget);
+            metrics.source(content.fuse().name()).relocated(classes);
+        } finally {
+            span.close();
+        }
+        return new FuseContents(content.fuse(), content.archive(), content.manifest(), entries);
+    }
+
+    /**
+     * Relocate entries that were already read, only classes that mention a relocated package are remapped
+     *
+     * @return - The number of remapped classes
+     */
+    private int relocateEntries(Collection<FuseEntry> entries, Relocator relocator, List<FuseEntry> relocated, MemoryBudget budget) throws IOException {
+        var classes = 0;
+        for (var entry : entries) {
+            var name = relocator.relocatePath(entry.name());
+            if (!entry.isDirectory() && relocator.canRelocateClass(entry.name()) && relocator.references(entry.content())) {
+                relocated.add(budget.entry(name, relocator.relocateClass(entry.content()), entry.time()));
+                classes++;
+            } else {
+                relocated.add(entry.renamed(name));
             }
-            fuseDirs.add(unpackJar(remapJar(fuse.root(), fuse.relocations())));
         }
-        return fuseDirs;
+        return classes;
     }
 
-    private File getManifestFile(File file, boolean recreate) throws IOException {
-        var metaInfDir = FileTools.getOrCreate(new File(file, "META-INF"));
-        var manifestFile = new File(metaInfDir, "MANIFEST.MF");
-        if (recreate) {
-            return FileTools.createOrReCreateF(manifestFile);
+    /**
+     * Relocate the classes of an embedded jar while streaming it, the embedded jar is never extracted.
+     * Classes that do not mention a relocated package and other entries are copied as they are.
+     */
+    private void relocateEmbeddedJar(InputStream input, Relocator relocator, OutputStream bytes) throws IOException {
+        try (var jar = new ZipArchiveInputStream(input, StandardCharsets.UTF_8.name(), true, true);
+             var output = new ZipArchiveOutputStream(bytes)) {
+            output.setLevel(settings.compressionLevel());
+            ZipArchiveEntry entry;
+            while ((entry = jar.getNextZipEntry()) != null) {
+                var relocated = new ZipArchiveEntry(relocator.relocatePath(entry.getName()));
+                relocated.setTime(entry.getTime());
+                output.putArchiveEntry(relocated);
+                if (!entry.isDirectory() && relocator.canRelocateClass(entry.getName())) {
+                    var content = jar.readAllBytes();
+                    output.write(relocator.references(content) ? relocator.relocateClass(content) : content);
+                } else if (!entry.isDirectory()) {
+                    jar.transferTo(output);
+                }
+                output.closeArchiveEntry();
+            }
+        }
+    }
+
+    private void writeRelocatedJar(Fuse fuse, Relocator relocator, File file, FusePipeline pipeline) throws IOException {
+        try (var scope = budget.scope();
+             var contents = readEntries(fuse, fuse.root(), relocator, scope, pipeline)) {
+            var manifest = contents.manifest().getMainAttributes().isEmpty() ? null : manifestEntry(contents.manifest(), latestTime(contents.entries()));
+            FuseCache.write(file, manifest, contents.entries());
         }
-        return manifestFile;
     }
 
-    private File getMergeDir() throws IOException {
-        var mergedDir = new File(tempDir, FUSE_MERGE_DIR);
-        return FileTools.getOrCreate(mergedDir);
+    /**
+     * Hand an entry to every merger that accepts it. Contributions are only collected here, their content is read
+     * when the merged entry is built, so only the contributions of one path are held in memory at a time.
+     */
+    private boolean collectContribution(Fuse fuse, FuseEntry entry, Map<String, Map<Merger, List<FuseIndex.Contribution>>> mergedEntries) {
+        var merged = false;
+        var element = new FuseEntryElement(entry);
+        for (var merger : settings.mergers()) {
+            if (merger.canMerge(element)) {
+                mergedEntries.computeIfAbsent(entry.name(), name -> new LinkedHashMap<>())
+                    .computeIfAbsent(merger, key -> new ArrayList<>())
+                    .add(new FuseIndex.Contribution(fuse.name(), entry));
+                merged = true;
+            }
+        }
+        return merged;
     }
 
-    private File getExtractTempDir(File file) {
-        return FileTools.getOrCreate(new File(tempDir, file.getName() + "-" + FUSE_UNPACKED_SUFFIX));
+    private void mergeContributions(String name, Map<Merger, List<FuseIndex.Contribution>> contributions, OutputStream output) throws IOException {
+        for (var merger : contributions.entrySet()) {
+            var mergerContributions = new ArrayList<MergerContribution>(merger.getValue().size());
+            for (var contribution : merger.getValue()) {
+                mergerContributions.add(new MergerContribution(contribution.source(), contribution.entry().content()));
+            }
+            merger.getKey().merge(name, mergerContributions, output);
+        }
     }
 
-    private File getRemappedJarFile(File file) {
-        return new File(tempDir, file.getName());
+    /**
+     * Write the output jar, entries are compressed on {@code compressionThreads} threads
+     * and written in order, so the jar is the same whatever the number of threads.
+     * The jar and its variants are written at the same time, they share the compressors and the window of queued entries.
+     * With a reproducible file order, entries are sorted by path and manifest attributes by name,
+     * unless the layout orders them. The package index, when enabled, follows the manifest.
+     * The manifest gets the time of the newest entry, so the same inputs always give the same jar.
+     */
+    void writeJar(File file, Manifest manifest, Collection<FuseEntry> entries) throws IOException {
+        try (var pipeline = new FusePipeline(0, 0, 0, settings.compressionThreads())) {
+            writeJar(pipeline, file, manifest, entries);
+        }
     }
 
-    private File unpackJar(File file) throws IOException {
-        var unpacked = getExtractTempDir(file);
-        jarManager.unpackJar(file, unpacked);
-        return unpacked;
+    private void writeJar(FusePipeline pipeline, File file, Manifest manifest, Collection<FuseEntry> entries) throws IOException {
+        if (settings.reproducibleFileOrder()) {
+            manifest = sortManifest(manifest);
+        }
+        var count = write(pipeline, file, manifest, entries, settings.compressionLevel(), null);
+        metrics.written(count, file.length());
     }
 
-    private File remapJar(File file, List<Relocation> relocations) throws IOException {
-        var remapped = FileTools.createOrReCreateF(getRemappedJarFile(file));
-        jarManager.remapJar(file, remapped, relocations);
-        return remapped;
+    /**
+     * Write a variant jar from the merged entries, entries are filtered and relocated for the variant only.
+     * Entries relocated by the variant are remapped in memory, the others are still copied raw.
+     */
+    private void writeVariant(FusePipeline pipeline, FuseOutput variant, MergedContents merged) throws IOException {
+        var spec = variant.spec();
+        var entries = new ArrayList<FuseEntry>();
+        for (var entry : merged.entries()) {
+            if (spec.isSatisfiedBy(new FuseEntryElement(entry))) {
+                entries.add(entry);
+            }
+        }
+        var relocator = new Relocator(List.of(variant.relocations()));
+        try (var scope = budget.scope()) {
+            if (!relocator.isEmpty()) {
+                var span = metrics.start(FuseMetrics.RELOCATE, variant.name());
+                try {
+                    var relocated = new ArrayList<FuseEntry>(entries.size());
+                    relocateEntries(entries, relocator, relocated, scope);
+                    entries = relocated;
+                } finally {
+                    span.close();
+                }
+            }
+            var manifest = merged.manifest();
+            if (settings.reproducibleFileOrder()) {
+                manifest = sortManifest(manifest);
+            }
+            write(pipeline, variant.jarFile(), manifest, entries, variant.compressionLevel(), variant.name());
+        }
     }
 
-    private Manifest readManifestInMetaInf(File file) throws IOException {
-        var manifest = new Manifest();
-        var manifestFile = getManifestFile(file, false);
-        if (manifestFile.exists()) {
-            manifest.read(new FileInputStream(manifestFile));
+    private long write(FusePipeline pipeline, File file, Manifest manifest, Collection<FuseEntry> entries, int compressionLevel, @Nullable String variant) throws IOException {
+        if (settings.layout() == FuseLayout.STARTUP) {
+            entries = startupOrder(entries);
+        } else if (settings.reproducibleFileOrder()) {
+            entries = entries.stream().sorted(Comparator.comparing(FuseEntry::name)).toList();
+        }
+        if (settings.packageIndex()) {
+            entries = entries.stream().filter(entry -> !entry.name().equals(PACKAGE_INDEX_NAME)).toList();
+        }
+        var count = 1L;
+        var time = latestTime(entries);
+        var span = metrics.start(FuseMetrics.WRITE, variant);
+        try (var output = new FuseJarWriter(file, pipeline, compressionLevel, settings.copyRawEntries(), settings.preserveFileTimestamps(), settings.storeThreshold(), settings.storeCompressedFormats(), budget.getLimit() / 4 / (1 + settings.variants().size()))) {
+            output.write(manifestEntry(manifest, time));
+            if (settings.packageIndex()) {
+                output.write(packageIndexEntry(file.getName(), entries, time));
+                count++;
+            }
+            for (var entry : entries) {
+                output.write(entry);
+                count++;
+            }
+        } finally {
+            span.close();
+        }
+        return count;
+    }
+
+    /**
+     * Order the entries as in {@link FuseLayout#STARTUP}. Directories come first, sorted by path,
+     * so every directory precedes its sub directories and files. Classes are grouped by package.
+     */
+    private static List<FuseEntry> startupOrder(Collection<FuseEntry> entries) throws IOException {
+        var groups = new EnumMap<EntryKind, List<FuseEntry>>(EntryKind.class);
+        for (var entry : entries) {
+            groups.computeIfAbsent(entry.kind(), key -> new ArrayList<>()).add(entry);
+        }
+        var ordered = new ArrayList<FuseEntry>(entries.size());
+        for (var kind : STARTUP_ORDER) {
+            var group = groups.get(kind);
+            if (group == null) {
+                continue;
+            }
+            if (kind == EntryKind.CLASS) {
+                group.sort(Comparator.comparing(MergeJarAction::packageOf).thenComparing(FuseEntry::name));
+            } else {
+                group.sort(Comparator.comparing(FuseEntry::name));
+            }
+            ordered.addAll(group);
+        }
+        return ordered;
+    }
+
+    private static String packageOf(FuseEntry entry) {
+        return entry.name().substring(0, Math.max(0, entry.name().lastIndexOf('/')));
+    }
+
+    /**
+     * Build a META-INF/INDEX.LIST in the jar index format, listing every package and top level file of the jar.
+     * Only the packages of this jar are listed, see {@link FuseJar#getPackageIndex()} for the caveats.
+     */
+    private static FuseEntry packageIndexEntry(String jarName, Collection<FuseEntry> entries, long time) {
+        var packages = new LinkedHashSet<String>();
+        for (var entry : entries) {
+            if (entry.isDirectory() || entry.name().startsWith("META-INF/")) {
+                continue;
+            }
+            var separator = entry.name().lastIndexOf('/');
+            packages.add(separator == -1 ? entry.name() : entry.name().substring(0, separator));
         }
-        return manifest;
+        var index = new StringBuilder("JarIndex-Version: 1.0\n\n").append(jarName).append('\n');
+        packages.forEach(pkg -> index.append(pkg).append('\n'));
+        return FuseEntry.of(PACKAGE_INDEX_NAME, index.append('\n').toString().getBytes(StandardCharsets.UTF_8), time);
+    }
+
+    private FuseEntry manifestEntry(Manifest manifest, long time) throws IOException {
+        var output = new ByteArrayOutputStream();
+        manifest.write(output);
+        return FuseEntry.of(JarFile.MANIFEST_NAME, output.toByteArray(), time);
+    }
+
+    private static long latestTime(Collection<FuseEntry> entries) {
+        return entries.stream().mapToLong(FuseEntry::time).max().orElse(FuseJarWriter.CONSTANT_TIME_FOR_ZIP_ENTRIES);
+    }
+
+    /**
+     * Copy a manifest with its main attributes sorted by name, the manifest version is always written first
+     */
+    private static Manifest sortManifest(Manifest manifest) {
+        var sorted = new Manifest();
+        manifest.getMainAttributes().entrySet().stream()
+            .sorted(Comparator.comparing(attribute -> attribute.getKey().toString(), String.CASE_INSENSITIVE_ORDER))
+            .forEach(attribute -> sorted.getMainAttributes().put(attribute.getKey(), attribute.getValue()));
+        return sorted;
     }
 
-    private void writeManifestInMetaInf(File file, Manifest manifest) throws IOException {
-        var outputStream = new FileOutputStream(getManifestFile(file, true));
-        manifest.write(outputStream);
-        outputStream.close();
+    static void mergeManifest(Manifest mergedManifest, Manifest manifest) {
+        manifest.getMainAttributes().forEach((key, value) -> mergedManifest.getMainAttributes().putValue(key.toString(), value.toString()));
     }
 
-    private Manifest mergeManifestsInMetaInf(List<File> dirs) throws IOException {
-        var mergedManifest = new Manifest();
-        for (var dir : dirs) {
-            readManifestInMetaInf(dir).getMainAttributes().forEach((key, value) -> mergedManifest.getMainAttributes().putValue(key.toString(), value.toString()));
+    /**
+     * Merges the entries of the fuses, in the declared order, one fuse at a time as soon as it is read.
+     * The merged entries are built by the transformers of the pipeline once every fuse is added.
+     */
+    private final class Merge {
+
+        private final FusePipeline pipeline;
+        private final Map<String, FuseEntry> entries = new LinkedHashMap<>();
+        private final Map<String, Map<Merger, List<FuseIndex.Contribution>>> mergedEntries = new LinkedHashMap<>();
+        private final Manifest manifest = new Manifest();
+        private final FuseIndex index = new FuseIndex();
+        private final MemoryBudget scope = budget.scope();
+
+        private Merge(FusePipeline pipeline) {
+            this.pipeline = pipeline;
         }
 
-        return mergedManifest;
+        /**
+         * Merge the entries of the next fuse
+         *
+         * @param content - The entries of the fuse
+         */
+        void add(FuseContents content) throws IOException {
+            var manifestSpan = metrics.start(FuseMetrics.MANIFEST, null);
+            try {
+                mergeManifest(manifest, content.manifest());
+            } finally {
+                manifestSpan.close();
+            }
+            var mergeSpan = metrics.start(FuseMetrics.MERGE, null);
+            try {
+                for (var entry : content.entries()) {
+                    if (entry.isDirectory()) {
+                        entries.putIfAbsent(entry.name(), entry);
+                        continue;
+                    }
+                    // every contribution to a merged path is handed to its merger
+                    if (!mergedEntries.containsKey(entry.name()) && index.isDuplicate(entries.get(entry.name()), entry)) {
+                        entry.evict();
+                        continue;
+                    }
+                    var merged = collectContribution(content.fuse(), entry, mergedEntries);
+                    if (merged) {
+                        entries.putIfAbsent(entry.name(), entry);
+                    } else {
+                        entries.put(entry.name(), entry);
+                    }
+                    index.add(content.fuse().name(), entry, merged);
+                }
+            } finally {
+                mergeSpan.close();
+            }
+        }
+
+        /**
+         * @return - The merged entries, in the order their paths were first seen
+         */
+        MergedContents finish() throws IOException {
+            var span = metrics.start(FuseMetrics.MERGE, null);
+            try {
+                var merged = new ArrayList<Future<FuseEntry>>(mergedEntries.size());
+                for (var mergedEntry : mergedEntries.entrySet()) {
+                    var name = mergedEntry.getKey();
+                    var time = entries.get(name).time();
+                    merged.add(pipeline.transform(() -> scope.entry(name, time, output -> mergeContributions(name, mergedEntry.getValue(), output))));
+                }
+                for (var entry : merged) {
+                    var mergedEntry = FusePipeline.join(entry);
+                    entries.put(mergedEntry.name(), mergedEntry);
+                }
+            } finally {
+                span.close();
+            }
+            return new MergedContents(manifest, entries.values(), index, scope);
+        }
+
+    }
+
+    /**
+     * The result of merging every fuse, ready to be written
+     *
+     * @param manifest - The merged manifest
+     * @param entries  - The entries of the output jar, in order
+     * @param index    - The index of every entry, with its duplicates and conflicts
+     * @param budget   - The memory held by the merged entries, released when closed
+     */
+    record MergedContents(Manifest manifest, Collection<FuseEntry> entries, FuseIndex index, MemoryBudget budget) implements Closeable {
+
+        @Override
+        public void close() {
+            budget.close();
+        }
     }
 
 }
@@ -3,8 +3,11 @@ package dev.huskuraft.gradle.plugins.fuse.utils;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 
 /**
  * @author HypherionSA
@@ -12,6 +15,12 @@ import java.io.IOException;
  */
 public class FileChecks {
 
+    // Number of bytes sniffed to tell a binary from a text file
+    private static final int BINARY_SNIFF_SIZE = 4096;
+
+    // Signature of a local file header, the first bytes of any zip file
+    private static final int ZIP_HEADER = 0x04034b50;
+
     /**
      * Try to determine if a file is a binary or text file
      *
@@ -19,23 +28,24 @@ public class FileChecks {
      * @return - True if binary
      */
     public static boolean isBinary(@NotNull File file) {
-        try (FileInputStream inputStream = new FileInputStream(file)) {
-            int size = (int) Math.min(file.length(), 4096);
-            byte[] data = new byte[size];
-            int bytesRead = inputStream.read(data, 0, size);
-
-            for (int i = 0; i < bytesRead; i++) {
-                if (data[i] == 0) {
-                    return true;
-                }
-            }
-            return false;
+        try {
+            return isBinary(readHeader(file, BINARY_SNIFF_SIZE));
         } catch (IOException e) {
             e.printStackTrace();
             return false;
         }
     }
 
+    /**
+     * Try to determine if some content is binary or text, only the first bytes are tested
+     *
+     * @param data - The content to test
+     * @return - True if binary
+     */
+    public static boolean isBinary(byte @NotNull [] data) {
+        return isBinary(ByteBuffer.wrap(data, 0, Math.min(data.length, BINARY_SNIFF_SIZE)));
+    }
+
     /**
      * Test to see if input file is a ZIP file
      *
@@ -45,16 +55,44 @@ public class FileChecks {
     public static boolean isZipFile(@NotNull File file) {
         try {
             if (file.isDirectory()) return false;
-            byte[] bytes = new byte[4];
-            FileInputStream fis = new FileInputStream(file);
-            if (fis.read(bytes) != 4) {
-                return false;
-            }
-            fis.close();
-            final int header = bytes[0] + (bytes[1] << 8) + (bytes[2] << 16) + (bytes[3] << 24);
-            return 0x04034b50 == header;
+            return isZipFile(readHeader(file, 4));
         } catch (IOException e) {
             return false;
         }
     }
+
+    /**
+     * Test to see if some content is a ZIP file
+     *
+     * @param data - The content to test
+     * @return - True if zip
+     */
+    public static boolean isZipFile(byte @NotNull [] data) {
+        return isZipFile(ByteBuffer.wrap(data));
+    }
+
+    private static boolean isBinary(ByteBuffer data) {
+        while (data.hasRemaining()) {
+            if (data.get() == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isZipFile(ByteBuffer data) {
+        return data.remaining() >= 4 && data.order(ByteOrder.LITTLE_ENDIAN).getInt(data.position()) == ZIP_HEADER;
+    }
+
+    /**
+     * Read the first bytes of a file through a channel, without buffering the rest of it
+     */
+    private static ByteBuffer readHeader(File file, int size) throws IOException {
+        try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            var buffer = ByteBuffer.allocate((int) Math.min(channel.size(), size));
+            while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+            }
+            return buffer.flip();
+        }
+    }
 }
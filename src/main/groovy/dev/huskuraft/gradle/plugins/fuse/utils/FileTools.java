@@ -1,18 +1,20 @@
 package dev.huskuraft.gradle.plugins.fuse.utils;
 
+import org.apache.commons.compress.archivers.zip.ZipFile;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
-import org.gradle.api.Project;
-import org.gradle.api.tasks.bundling.AbstractArchiveTask;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.CopyOption;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
@@ -198,7 +200,9 @@ public class FileTools {
      *
      * @param dir - The directory the jar was extracted to
      * @return - List of embedded jars
+     * @deprecated Archives are no longer extracted, use {@code EntryKind.EMBEDDED_JAR} on the archive entries
      */
+    @Deprecated
     @NotNull
     public static List<File> embeddedJars(File dir) {
         List<File> returnJars = new ArrayList<>();
@@ -233,12 +237,25 @@ public class FileTools {
         return returnJars;
     }
 
+    /**
+     * Test to see if an archive path is a jar embedded for a mod loader, in META-INF/jars (Fabric) or META-INF/jarjar (Forge)
+     *
+     * @param path - The path of the entry inside the archive
+     * @return - True if the entry is an embedded jar
+     */
+    public static boolean isEmbeddedJar(@NotNull String path) {
+        return (path.startsWith(META_DIR + "/" + JARS_DIR + "/") || path.startsWith(META_DIR + "/" + JARJAR_DIR + "/"))
+            && FilenameUtils.getExtension(path).equalsIgnoreCase("jar");
+    }
+
     /**
      * Get all text files from the input jar
      *
      * @param dir - The directory the jar was extracted to
      * @return - List of text files
+     * @deprecated Archives are no longer extracted, use {@code EntryKind.TEXT} on the archive entries
      */
+    @Deprecated
     @NotNull
     public static List<File> getTextFiles(@NotNull File dir) throws IOException {
         List<File> returnFiles = new ArrayList<>();
@@ -267,7 +284,9 @@ public class FileTools {
      * @param includeRefmaps - Should reference maps be included in the search
      * @return - List of mixin configs and optionally refmaps
      * @throws IOException - Thrown when an IO error occurs
+     * @deprecated Archives are no longer extracted, use {@code EntryKind.MIXIN_CONFIG} and {@code EntryKind.REFMAP} on the archive entries
      */
+    @Deprecated
     @NotNull
     public static List<File> getMixins(@NotNull File dir, boolean includeRefmaps) throws IOException {
         List<File> files = getTextFiles(dir);
@@ -299,7 +318,9 @@ public class FileTools {
      * @param dir - The directory the jar was extracted to
      * @return - A list of mixin refmaps
      * @throws IOException - Thrown when an IO error occurs
+     * @deprecated Archives are no longer extracted, use {@code EntryKind.REFMAP} on the archive entries
      */
+    @Deprecated
     @NotNull
     public static List<File> getRefmaps(@NotNull File dir) throws IOException {
         List<File> files = getTextFiles(dir);
@@ -322,7 +343,9 @@ public class FileTools {
      * @param dir - The directory the jar was extracted to
      * @return - A list of access wideners
      * @throws IOException - Thrown when an IO error occurs
+     * @deprecated Archives are no longer extracted, use {@code EntryKind.ACCESS_WIDENER} on the archive entries
      */
+    @Deprecated
     @NotNull
     public static List<File> getAccessWideners(@NotNull File dir) throws IOException {
         List<File> files = getTextFiles(dir);
@@ -353,7 +376,9 @@ public class FileTools {
      * @param dir   - The directory the jar was extracted to
      * @param group - The group to search for
      * @return - A list of service files
+     * @deprecated Archives are no longer extracted, use {@code EntryKind.SERVICE} on the archive entries
      */
+    @Deprecated
     @NotNull
     public static List<File> getPlatformServices(@NotNull File dir, @NotNull String group) {
         List<File> services = new ArrayList<>();
@@ -431,29 +456,40 @@ public class FileTools {
         return dir;
     }
 
-    public static File resolveFile(Project project, Object obj) {
-        if (obj == null) {
-            throw new NullPointerException("Task object cannot be null");
-        }
-
-        if (obj instanceof String string) {
-            var task = project.getTasks().named(string);
-            if (task.isPresent()) {
-                if (task.get() instanceof AbstractArchiveTask archiveTask) {
-                    return archiveTask.getArchiveFile().get().getAsFile();
-                } else {
-                    throw new IllegalArgumentException("Task '" + obj + "' in '" + project + "' is not an AbstractArchiveTask");
-                }
-            }
-        }
+    /**
+     * Open a zip file through a single file channel. Entries are listed from the central directory,
+     * and the data offset of every entry is resolved from its local file header while opening.
+     * Entries are then read with positional reads on the channel, so they can be opened from several threads at once.
+     *
+     * @param file - The zip file to open
+     * @return - The opened zip file, closing it closes the channel
+     * @throws IOException - Thrown when the file is not a readable zip file
+     */
+    @NotNull
+    public static ZipFile openZipFile(@NotNull File file) throws IOException {
+        return openZipFile(file, false);
+    }
 
-        if (obj instanceof File file) {
-            return file;
-        }
+    /**
+     * Open a zip file to list its entries from the central directory only. Local file headers are read
+     * the first time an entry is opened, which is not thread safe, so entries must be opened from a single thread.
+     *
+     * @param file - The zip file to open
+     * @return - The opened zip file, closing it closes the channel
+     * @throws IOException - Thrown when the file is not a readable zip file
+     */
+    @NotNull
+    public static ZipFile openCentralDirectory(@NotNull File file) throws IOException {
+        return openZipFile(file, true);
+    }
 
-        if (obj instanceof AbstractArchiveTask archiveTask) {
-            return archiveTask.getArchiveFile().get().getAsFile();
+    private static ZipFile openZipFile(File file, boolean ignoreLocalFileHeader) throws IOException {
+        var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            return new ZipFile(channel, file.getName(), StandardCharsets.UTF_8.name(), true, ignoreLocalFileHeader);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
         }
-        return project.file(obj);
     }
 }
@@ -0,0 +1,50 @@
+package dev.huskuraft.gradle.plugins.fuse.tasks;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FuseIndexTest {
+
+    private static final long TIME = 315532800000L;
+
+    @Test
+    void anEntryWithTheBytesOfTheKeptEntryIsADuplicate() throws IOException {
+        var index = new FuseIndex();
+        var forge = entry("data.json", "{\"value\":1}");
+
+        assertTrue(index.isDuplicate(forge, entry("data.json", "{\"value\":1}")));
+        assertEquals(1, index.getDuplicateEntries());
+        assertEquals(forge.size(), index.getDuplicateBytes());
+    }
+
+    @Test
+    void entriesWithOtherBytesOrNoKeptEntryAreNotDuplicates() throws IOException {
+        var index = new FuseIndex();
+
+        assertFalse(index.isDuplicate(entry("data.json", "{\"value\":1}"), entry("data.json", "{\"value\":2}")));
+        assertFalse(index.isDuplicate(null, entry("data.json", "{\"value\":1}")));
+        assertEquals(0, index.getDuplicateEntries());
+    }
+
+    @Test
+    void conflictsAreReportedAgainstTheLastContribution() {
+        var index = new FuseIndex();
+        index.add("forge", entry("data.json", "one"), false);
+        index.add("fabric", entry("data.json", "two"), false);
+        index.add("quilt", entry("data.json", "one"), false);
+
+        assertEquals(List.of(new FuseIndex.Conflict("data.json", "forge", "fabric"), new FuseIndex.Conflict("data.json", "fabric", "quilt")), index.getConflicts());
+    }
+
+    private static FuseEntry entry(String name, String content) {
+        return FuseEntry.of(name, content.getBytes(StandardCharsets.UTF_8), TIME);
+    }
+
+}
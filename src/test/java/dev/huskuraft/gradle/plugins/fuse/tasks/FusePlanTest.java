@@ -0,0 +1,78 @@
+package dev.huskuraft.gradle.plugins.fuse.tasks;
+
+import dev.huskuraft.gradle.plugins.fuse.merger.ServiceFileMerger;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FusePlanTest {
+
+    private static final String SERVICE = "META-INF/services/dev.example.Service";
+
+    @TempDir
+    File directory;
+
+    @Test
+    void everyPathIsResolvedLikeTheMerge() throws IOException {
+        var fuses = List.of(
+            SyntheticJars.jar(new File(directory, "input/forge.jar"), "forge", entries("forge", "{\"loader\":\"forge\"}")),
+            SyntheticJars.jar(new File(directory, "input/fabric.jar"), "fabric", entries("fabric", "{\"loader\":\"fabric\"}")));
+        var plan = FusePlan.of(fuses, List.of(new ServiceFileMerger()), List.of(), false);
+
+        var resolutions = plan.getEntries().stream().collect(Collectors.toMap(FusePlan.PlannedEntry::path, FusePlan.PlannedEntry::resolution));
+        assertEquals(FusePlan.Resolution.SINGLE, resolutions.get("forge.txt"));
+        assertEquals(FusePlan.Resolution.IDENTICAL, resolutions.get("shared.json"));
+        assertEquals(FusePlan.Resolution.REPLACED, resolutions.get("conflict.json"));
+        assertEquals(FusePlan.Resolution.MERGED, resolutions.get(SERVICE));
+        assertEquals(List.of("conflict.json"), plan.getConflicts().stream().map(FusePlan.PlannedEntry::path).toList());
+
+        var settings = SyntheticJars.settings(directory, fuses).build();
+        new MergeJarAction(settings).mergeFuse();
+        try (var output = new ZipFile(settings.jarFile())) {
+            var paths = output.stream().map(ZipEntry::getName).filter(name -> !name.equals("META-INF/MANIFEST.MF")).toList();
+            assertEquals(plan.getEntries().stream().map(FusePlan.PlannedEntry::path).toList(), paths);
+        }
+
+        var report = new File(directory, "plan.txt");
+        plan.write(report);
+        assertTrue(Files.readString(report.toPath(), StandardCharsets.UTF_8).contains("  conflict.json <- forge, fabric [conflict, keeping fabric]\n"));
+    }
+
+    @Test
+    void conflictRelocationsArePlannedOnPaths() throws IOException {
+        var fuses = List.of(
+            SyntheticJars.jar(new File(directory, "input/forge.jar"), "forge", Map.of("com/lib/core/Lib.class", SyntheticJars.generateClass("com/lib/core/Lib", null))),
+            SyntheticJars.jar(new File(directory, "input/fabric.jar"), "fabric", Map.of("com/lib/core/Lib.class", SyntheticJars.generateClass("com/lib/core/Lib", "java/lang/String"))));
+        var plan = FusePlan.of(fuses, List.of(), List.of(), true);
+
+        assertEquals(List.of("forge/com/lib/core/Lib.class", "fabric/com/lib/core/Lib.class"), plan.getEntries().stream().map(FusePlan.PlannedEntry::path).toList());
+        assertTrue(plan.getConflicts().isEmpty());
+    }
+
+    private static Map<String, byte[]> entries(String loader, String conflict) {
+        var entries = new LinkedHashMap<String, byte[]>();
+        entries.put(loader + ".txt", text(loader));
+        entries.put("shared.json", text("{\"shared\":true}"));
+        entries.put("conflict.json", text(conflict));
+        entries.put(SERVICE, text("dev.example." + loader + "\n"));
+        return entries;
+    }
+
+    private static byte[] text(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+}
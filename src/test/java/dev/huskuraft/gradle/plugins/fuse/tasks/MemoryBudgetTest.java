@@ -0,0 +1,64 @@
+package dev.huskuraft.gradle.plugins.fuse.tasks;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MemoryBudgetTest {
+
+    private static final long TIME = 315532800000L;
+
+    @TempDir
+    File directory;
+
+    @Test
+    void contentBeyondTheBudgetIsSpilledAndReadBack() throws IOException {
+        var spill = new File(directory, "spill");
+        var large = "0123456789abcdef".getBytes(StandardCharsets.UTF_8);
+        try (var budget = new MemoryBudget(8, spill)) {
+            var small = budget.entry("small.txt", new byte[4], TIME);
+            var spilled = budget.entry("large.txt", large, TIME);
+
+            assertEquals(4, budget.getReserved());
+            assertEquals(1, budget.getSpilledEntries());
+            assertEquals(large.length, budget.getSpilledBytes());
+            assertArrayEquals(new byte[4], small.content());
+            assertArrayEquals(large, spilled.content());
+            assertTrue(spill.isDirectory());
+        }
+        assertFalse(spill.exists());
+    }
+
+    @Test
+    void writtenContentSwitchesToAFileOnceItOutgrowsTheBudget() throws IOException {
+        var large = new byte[64];
+        try (var budget = new MemoryBudget(16, new File(directory, "spill"))) {
+            var entry = budget.entry("large.bin", TIME, output -> output.write(large));
+
+            assertEquals(0, budget.getReserved());
+            assertEquals(1, budget.getSpilledEntries());
+            assertArrayEquals(large, entry.content());
+        }
+    }
+
+    @Test
+    void closingAScopeReleasesItsReservations() throws IOException {
+        try (var budget = new MemoryBudget(16, new File(directory, "spill"))) {
+            var scope = budget.scope();
+            scope.entry("merged.txt", new byte[12], TIME);
+            assertEquals(12, budget.getReserved());
+
+            scope.close();
+            assertEquals(0, budget.getReserved());
+        }
+    }
+
+}
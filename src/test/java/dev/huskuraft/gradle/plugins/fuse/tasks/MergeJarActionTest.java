@@ -0,0 +1,274 @@
+package dev.huskuraft.gradle.plugins.fuse.tasks;
+
+import dev.huskuraft.gradle.plugins.fuse.relocation.Relocation;
+import dev.huskuraft.gradle.plugins.fuse.relocation.Relocator;
+import dev.huskuraft.gradle.plugins.fuse.utils.FileTools;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MergeJarActionTest {
+
+    private static final SyntheticJars.Shape SHAPE = new SyntheticJars.Shape(32, 8, 1, 2, 2);
+
+    @TempDir
+    File directory;
+
+    @Test
+    void onlyClassesReferencingRelocatedPackagesAreRemapped() throws IOException {
+        var relocator = new Relocator(List.of(SyntheticJars.relocations(SHAPE, "forge")));
+        assertTrue(relocator.references(SyntheticJars.generateClass("dev/example/forge/Uses", "com/library0/Library")));
+        assertFalse(relocator.references(SyntheticJars.generateClass("dev/example/forge/Plain", null)));
+
+        var fuses = SyntheticJars.generate(new File(directory, "input"), SHAPE, "forge", "fabric");
+        var settings = SyntheticJars.settings(directory, fuses).build();
+        new MergeJarAction(settings).mergeFuse();
+
+        try (var input = new JarFile(fuses.get(0).root()); var output = new JarFile(settings.jarFile())) {
+            assertNotNull(output.getEntry("forge/com/library0/Library.class"));
+            assertNull(output.getEntry("com/library0/Library.class"));
+
+            var remapped = read(output, "dev/example/forge/p0/Class0.class");
+            assertTrue(contains(remapped, "forge/com/library0/Library"));
+            assertFalse(contains(remapped, "Lcom/library0/Library;"));
+
+            // a class without relocated references is kept byte for byte
+            assertArrayEquals(read(input, "dev/example/common/Common0.class"), read(output, "dev/example/common/Common0.class"));
+        }
+    }
+
+    @Test
+    void serviceFilesAreMergedWithoutDuplicateProviders() throws IOException {
+        var service = "META-INF/services/dev.example.Service";
+        var forge = SyntheticJars.jar(new File(directory, "input/forge.jar"), "forge", Map.of(service, text("dev.example.Common\n# forge\ndev.example.Forge\n")));
+        var fabric = SyntheticJars.jar(new File(directory, "input/fabric.jar"), "fabric", Map.of(service, text("dev.example.Fabric\n\ndev.example.Common # shared\n")));
+        var settings = SyntheticJars.settings(directory, List.of(forge, fabric)).build();
+        new MergeJarAction(settings).mergeFuse();
+
+        try (var output = new JarFile(settings.jarFile())) {
+            assertEquals("dev.example.Common\ndev.example.Forge\ndev.example.Fabric\n", new String(read(output, service), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void unchangedEntriesAreCopiedRaw() throws IOException {
+        var fuses = SyntheticJars.generate(new File(directory, "input"), SHAPE, "forge", "fabric");
+        var settings = SyntheticJars.settings(directory, fuses).copyRawEntries(true).build();
+        new MergeJarAction(settings).mergeFuse();
+
+        var name = "assets/forge/data/resource0.json";
+        try (var input = FileTools.openZipFile(fuses.get(0).root()); var output = FileTools.openZipFile(settings.jarFile())) {
+            var inputEntry = input.getEntry(name);
+            var outputEntry = output.getEntry(name);
+            assertEquals(inputEntry.getCompressedSize(), outputEntry.getCompressedSize());
+            try (var inputBytes = input.getRawInputStream(inputEntry); var outputBytes = output.getRawInputStream(outputEntry)) {
+                assertArrayEquals(inputBytes.readAllBytes(), outputBytes.readAllBytes());
+            }
+        }
+    }
+
+    @Test
+    void identicalEntriesAreKeptOnce() throws IOException {
+        var shared = text("{\"shared\":true}");
+        var forge = SyntheticJars.jar(new File(directory, "input/forge.jar"), "forge", entries("shared.json", shared, "conflict.json", text("{\"loader\":\"forge\"}")));
+        var fabric = SyntheticJars.jar(new File(directory, "input/fabric.jar"), "fabric", entries("shared.json", shared, "conflict.json", text("{\"loader\":\"fabric\"}")));
+        var action = new MergeJarAction(SyntheticJars.settings(directory, List.of(forge, fabric)).build());
+
+        var contents = action.readFuses();
+        try (var merged = action.mergeContents(contents)) {
+            assertEquals(1, merged.index().getDuplicateEntries());
+            assertEquals(List.of("conflict.json"), merged.index().getConflicts().stream().map(FuseIndex.Conflict::path).toList());
+            assertEquals(2, merged.entries().size());
+        } finally {
+            action.closeAll(contents);
+        }
+    }
+
+    @Test
+    void anEntryMatchingAReplacedEntryStillWins() throws IOException {
+        var forge = SyntheticJars.jar(new File(directory, "input/forge.jar"), "forge", Map.of("x.txt", text("one")));
+        var fabric = SyntheticJars.jar(new File(directory, "input/fabric.jar"), "fabric", Map.of("x.txt", text("two")));
+        var quilt = SyntheticJars.jar(new File(directory, "input/quilt.jar"), "quilt", Map.of("x.txt", text("one")));
+        var settings = SyntheticJars.settings(directory, List.of(forge, fabric, quilt)).build();
+        var action = new MergeJarAction(settings);
+
+        var contents = action.readFuses();
+        try (var merged = action.mergeContents(contents)) {
+            assertEquals(0, merged.index().getDuplicateEntries());
+            assertEquals(List.of(new FuseIndex.Conflict("x.txt", "forge", "fabric"), new FuseIndex.Conflict("x.txt", "fabric", "quilt")), merged.index().getConflicts());
+        } finally {
+            action.closeAll(contents);
+        }
+
+        action.mergeFuse();
+        try (var output = new JarFile(settings.jarFile())) {
+            assertEquals("one", new String(read(output, "x.txt"), StandardCharsets.UTF_8));
+        }
+        var plan = FusePlan.of(settings.fuses(), settings.mergers(), settings.ignoredPackages(), false);
+        assertEquals(List.of("x.txt"), plan.getConflicts().stream().map(FusePlan.PlannedEntry::path).toList());
+    }
+
+    @Test
+    void conflictingLibrariesAreRelocatedPerFuse() throws IOException {
+        var forge = SyntheticJars.jar(new File(directory, "input/forge.jar"), "forge", entries(
+            "com/lib/core/Lib.class", SyntheticJars.generateClass("com/lib/core/Lib", null),
+            "dev/example/forge/Uses.class", SyntheticJars.generateClass("dev/example/forge/Uses", "com/lib/core/Lib")));
+        var fabric = SyntheticJars.jar(new File(directory, "input/fabric.jar"), "fabric", entries(
+            "com/lib/core/Lib.class", SyntheticJars.generateClass("com/lib/core/Lib", "java/lang/String"),
+            "dev/example/fabric/Uses.class", SyntheticJars.generateClass("dev/example/fabric/Uses", "com/lib/core/Lib")));
+        var settings = SyntheticJars.settings(directory, List.of(forge, fabric)).relocateConflicts(true).build();
+        new MergeJarAction(settings).mergeFuse();
+
+        try (var output = new JarFile(settings.jarFile())) {
+            assertNull(output.getEntry("com/lib/core/Lib.class"));
+            assertNotNull(output.getEntry("forge/com/lib/core/Lib.class"));
+            assertNotNull(output.getEntry("fabric/com/lib/core/Lib.class"));
+            assertTrue(contains(read(output, "dev/example/forge/Uses.class"), "forge/com/lib/core/Lib"));
+            assertTrue(contains(read(output, "dev/example/fabric/Uses.class"), "fabric/com/lib/core/Lib"));
+        }
+    }
+
+    @Test
+    void startupLayoutPutsDirectoriesAndStartupFilesFirst() throws IOException {
+        var forge = SyntheticJars.jar(new File(directory, "input/forge.jar"), "forge", layoutEntries());
+        var settings = SyntheticJars.settings(directory, List.of(forge)).layout(FuseLayout.STARTUP).build();
+        new MergeJarAction(settings).mergeFuse();
+
+        assertEquals(List.of(
+            JarFile.MANIFEST_NAME,
+            "META-INF/",
+            "META-INF/services/",
+            "dev/",
+            "dev/example/",
+            "META-INF/services/dev.example.Service",
+            "fabric.mod.json",
+            "dev/example/A.class",
+            "dev/example/B.class",
+            "assets/data.json"), names(settings.jarFile()));
+    }
+
+    @Test
+    void packageIndexFollowsTheManifest() throws IOException {
+        var forge = SyntheticJars.jar(new File(directory, "input/forge.jar"), "forge", layoutEntries());
+        var settings = SyntheticJars.settings(directory, List.of(forge)).packageIndex(true).build();
+        new MergeJarAction(settings).mergeFuse();
+
+        assertEquals(List.of(JarFile.MANIFEST_NAME, "META-INF/INDEX.LIST"), names(settings.jarFile()).subList(0, 2));
+        try (var output = new JarFile(settings.jarFile())) {
+            assertEquals("JarIndex-Version: 1.0\n\noutput.jar\nassets\ndev/example\nfabric.mod.json\n\n", new String(read(output, "META-INF/INDEX.LIST"), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    void variantsAreFilteredAndRelocatedWithoutChangingTheJar() throws IOException {
+        var fuses = SyntheticJars.generate(new File(directory, "input"), SHAPE, "forge", "fabric");
+        var variant = new FuseOutput("lite", new File(directory, "lite.jar"), 1, List.of(new Relocation("dev.example.common", "lite.common")), Set.of(), Set.of("assets/**"));
+        var settings = SyntheticJars.settings(new File(directory, "variants"), fuses).variants(List.of(variant)).build();
+        var alone = SyntheticJars.settings(new File(directory, "alone"), fuses).build();
+        new MergeJarAction(settings).mergeFuse();
+        new MergeJarAction(alone).mergeFuse();
+
+        assertEquals(-1L, Files.mismatch(alone.jarFile().toPath(), settings.jarFile().toPath()));
+        try (var output = new JarFile(variant.jarFile())) {
+            assertTrue(output.stream().noneMatch(entry -> entry.getName().startsWith("assets/")));
+            assertNull(output.getEntry("dev/example/common/Common0.class"));
+            assertNotNull(output.getEntry("lite/common/Common0.class"));
+            assertNotNull(output.getEntry("forge/com/library0/Library.class"));
+        }
+    }
+
+    @Test
+    void fusingIsReproducible() throws IOException {
+        var fuses = SyntheticJars.generate(new File(directory, "input"), SHAPE, "forge", "fabric", "quilt");
+        var first = SyntheticJars.settings(new File(directory, "first"), fuses).parallelism(1).build();
+        var second = SyntheticJars.settings(new File(directory, "second"), fuses).parallelism(4).build();
+        new MergeJarAction(first).mergeFuse();
+        new MergeJarAction(second).mergeFuse();
+
+        assertEquals(-1L, Files.mismatch(first.jarFile().toPath(), second.jarFile().toPath()));
+    }
+
+    @Test
+    void compressionThreadsDoNotChangeTheJar() throws IOException {
+        var fuses = SyntheticJars.generate(new File(directory, "input"), SHAPE, "forge", "fabric");
+        var single = SyntheticJars.settings(new File(directory, "single"), fuses).compressionThreads(1).copyRawEntries(false).build();
+        var parallel = SyntheticJars.settings(new File(directory, "parallel"), fuses).compressionThreads(4).copyRawEntries(false).build();
+        new MergeJarAction(single).mergeFuse();
+        new MergeJarAction(parallel).mergeFuse();
+
+        assertEquals(-1L, Files.mismatch(single.jarFile().toPath(), parallel.jarFile().toPath()));
+    }
+
+    @Test
+    void boundedMemoryGivesTheSameJar() throws IOException {
+        var fuses = SyntheticJars.generate(new File(directory, "input"), SHAPE, "forge", "fabric");
+        var bounded = SyntheticJars.settings(new File(directory, "bounded"), fuses).memoryBudget(1).build();
+        var unbounded = SyntheticJars.settings(new File(directory, "unbounded"), fuses).build();
+        new MergeJarAction(bounded).mergeFuse();
+        new MergeJarAction(unbounded).mergeFuse();
+
+        assertEquals(-1L, Files.mismatch(unbounded.jarFile().toPath(), bounded.jarFile().toPath()));
+        // the spilled files are deleted once the jar is written
+        assertFalse(new File(bounded.tempDir(), "spill").exists());
+    }
+
+    private static Map<String, byte[]> entries(String firstName, byte[] first, String secondName, byte[] second) {
+        var entries = new LinkedHashMap<String, byte[]>();
+        entries.put(firstName, first);
+        entries.put(secondName, second);
+        return entries;
+    }
+
+    private static Map<String, byte[]> layoutEntries() {
+        var entries = new LinkedHashMap<String, byte[]>();
+        entries.put("assets/data.json", text("{}"));
+        entries.put("dev/example/B.class", SyntheticJars.generateClass("dev/example/B", null));
+        entries.put("dev/", new byte[0]);
+        entries.put("fabric.mod.json", text("{}"));
+        entries.put("dev/example/", new byte[0]);
+        entries.put("META-INF/", new byte[0]);
+        entries.put("dev/example/A.class", SyntheticJars.generateClass("dev/example/A", null));
+        entries.put("META-INF/services/", new byte[0]);
+        entries.put("META-INF/services/dev.example.Service", text("dev.example.Forge\n"));
+        return entries;
+    }
+
+    private static List<String> names(File jar) throws IOException {
+        try (var zipFile = new ZipFile(jar)) {
+            return zipFile.stream().map(ZipEntry::getName).toList();
+        }
+    }
+
+    private static byte[] text(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] read(JarFile jar, String name) throws IOException {
+        try (var input = jar.getInputStream(jar.getEntry(name))) {
+            return input.readAllBytes();
+        }
+    }
+
+    private static boolean contains(byte[] bytes, String text) {
+        return new String(bytes, StandardCharsets.ISO_8859_1).contains(text);
+    }
+
+}
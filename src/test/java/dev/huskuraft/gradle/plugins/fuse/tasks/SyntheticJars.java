@@ -0,0 +1,227 @@
+package dev.huskuraft.gradle.plugins.fuse.tasks;
+
+import dev.huskuraft.gradle.plugins.fuse.merger.ServiceFileMerger;
+import dev.huskuraft.gradle.plugins.fuse.relocation.Relocation;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Generates the input jars of the tests and benchmarks. Every loader jar shares a common part, which is identical
+ * across loaders, and has its own classes referencing a set of library packages that can be relocated.
+ * The content only depends on the shape, so every run benchmarks the same bytes.
+ */
+final class SyntheticJars {
+
+    private static final String GROUP = "dev/example";
+    private static final long TIME = 315532800000L;
+
+    private SyntheticJars() {
+    }
+
+    /**
+     * The shape of one input jar
+     *
+     * @param classes     - The number of loader specific classes
+     * @param resources   - The number of text resources
+     * @param nestedJars  - The number of nested jars
+     * @param services    - The number of service files
+     * @param relocations - The number of relocated library packages
+     */
+    record Shape(int classes, int resources, int nestedJars, int services, int relocations) {
+
+        /**
+         * Parse a shape from a benchmark parameter, in the form "classes:resources:nestedJars:services:relocations"
+         */
+        static Shape parse(String shape) {
+            var parts = shape.split(":");
+            return new Shape(
+                Integer.parseInt(parts[0]),
+                Integer.parseInt(parts[1]),
+                Integer.parseInt(parts[2]),
+                Integer.parseInt(parts[3]),
+                Integer.parseInt(parts[4]));
+        }
+    }
+
+    /**
+     * Generate one input jar per loader
+     *
+     * @param directory - The directory the jars are written to
+     * @param shape     - The shape of every jar
+     * @param loaders   - The names of the loaders
+     * @return - The fuses of the generated jars, with their relocations
+     */
+    static List<Fuse> generate(File directory, Shape shape, String... loaders) throws IOException {
+        directory.mkdirs();
+        var fuses = new ArrayList<Fuse>();
+        for (var loader : loaders) {
+            var file = new File(directory, loader + ".jar");
+            write(file, shape, loader);
+            fuses.add(new Fuse.Impl(file, loader, relocations(shape, loader)));
+        }
+        return fuses;
+    }
+
+    /**
+     * Settings fusing the generated jars into output.jar, with the conventions of the fuse task and the service file merger.
+     * Every test and benchmark starts from these settings and only changes the options it checks or measures.
+     *
+     * @param directory - The directory of the output jar and the temporary files
+     * @param fuses     - The fuses of the generated jars
+     */
+    static FuseSettings.Builder settings(File directory, List<Fuse> fuses) {
+        return FuseSettings.builder(new File(directory, "output.jar"), new File(directory, "tmp"), fuses)
+            .mergers(List.of(new ServiceFileMerger()))
+            .ignoredPackages(List.of())
+            .parallelism(Runtime.getRuntime().availableProcessors())
+            .copyRawEntries(true)
+            .relocateEmbeddedJars(false)
+            .relocateConflicts(false)
+            .preserveFileTimestamps(true)
+            .reproducibleFileOrder(false)
+            .layout(FuseLayout.DEFAULT)
+            .storeThreshold(0)
+            .storeCompressedFormats(false)
+            .packageIndex(false)
+            .compressionLevel(Deflater.BEST_COMPRESSION)
+            .compressionThreads(Runtime.getRuntime().availableProcessors())
+            .variants(List.of())
+            .memoryBudget(0);
+    }
+
+    static List<Relocation> relocations(Shape shape, String loader) {
+        var relocations = new ArrayList<Relocation>();
+        for (var i = 0; i < shape.relocations(); i++) {
+            relocations.add(new Relocation(libraryPackage(i).replace('/', '.'), loader + "." + libraryPackage(i).replace('/', '.')));
+        }
+        return relocations;
+    }
+
+    /**
+     * Write a jar with the given entries, in order
+     *
+     * @param file    - The jar to write
+     * @param name    - The name of the fuse
+     * @param entries - The content of every entry, by path
+     * @return - The fuse of the jar, without relocations
+     */
+    static Fuse jar(File file, String name, Map<String, byte[]> entries) throws IOException {
+        file.getParentFile().mkdirs();
+        try (var output = new JarOutputStream(new FileOutputStream(file))) {
+            for (var entry : entries.entrySet()) {
+                put(output, entry.getKey(), entry.getValue());
+            }
+        }
+        return new Fuse.Impl(file, name, List.of());
+    }
+
+    private static void write(File file, Shape shape, String loader) throws IOException {
+        var random = new Random(loader.hashCode());
+        var manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().putValue("Implementation-Title", loader);
+
+        try (var output = new JarOutputStream(new FileOutputStream(file), manifest)) {
+            // the common part is the same in every loader jar, and is deduplicated when fusing
+            for (var i = 0; i < shape.classes() / 2; i++) {
+                put(output, GROUP + "/common/Common" + i + ".class", generateClass(GROUP + "/common/Common" + i, null));
+            }
+            for (var i = 0; i < shape.classes(); i++) {
+                var name = GROUP + "/" + loader + "/p" + (i % 16) + "/Class" + i;
+                put(output, name + ".class", generateClass(name, libraryClass(shape, i)));
+            }
+            for (var i = 0; i < shape.relocations(); i++) {
+                var name = libraryPackage(i) + "/Library";
+                put(output, name + ".class", generateClass(name, null));
+            }
+            for (var i = 0; i < shape.resources(); i++) {
+                put(output, "assets/" + loader + "/data/resource" + i + ".json", generateText(random, 512 + random.nextInt(4096)));
+            }
+            for (var i = 0; i < shape.services(); i++) {
+                var service = "META-INF/services/" + GROUP.replace('/', '.') + ".Service" + i;
+                put(output, service, (GROUP.replace('/', '.') + "." + loader + ".Service" + i + "Impl\n").getBytes(StandardCharsets.UTF_8));
+            }
+            for (var i = 0; i < shape.nestedJars(); i++) {
+                var directory = loader.equals("forge") ? "META-INF/jarjar/" : "META-INF/jars/";
+                put(output, directory + "library" + i + ".jar", generateNestedJar(i));
+            }
+            put(output, loader + ".mixins.json", ("{\"package\":\"" + GROUP.replace('/', '.') + "." + loader + ".mixin\"}").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static String libraryPackage(int index) {
+        return "com/library" + index;
+    }
+
+    private static String libraryClass(Shape shape, int index) {
+        return shape.relocations() == 0 ? null : libraryPackage(index % shape.relocations()) + "/Library";
+    }
+
+    private static void put(ZipOutputStream output, String name, byte[] content) throws IOException {
+        var entry = new ZipEntry(name);
+        entry.setTime(TIME);
+        output.putNextEntry(entry);
+        output.write(content);
+        output.closeEntry();
+    }
+
+    /**
+     * Generate a class with a field, a method and a constant referencing a library class, so the remapper has work to do
+     */
+    static byte[] generateClass(String name, String library) {
+        var writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V17, Opcodes.ACC_PUBLIC, name, null, "java/lang/Object", null);
+        if (library != null) {
+            var descriptor = Type.getObjectType(library).getDescriptor();
+            writer.visitField(Opcodes.ACC_PRIVATE, "library", descriptor, null, null).visitEnd();
+            var method = writer.visitMethod(Opcodes.ACC_PUBLIC, "library", "()" + descriptor, null, null);
+            method.visitCode();
+            method.visitLdcInsn(library.replace('/', '.'));
+            method.visitInsn(Opcodes.POP);
+            method.visitVarInsn(Opcodes.ALOAD, 0);
+            method.visitFieldInsn(Opcodes.GETFIELD, name, "library", descriptor);
+            method.visitInsn(Opcodes.ARETURN);
+            method.visitMaxs(0, 0);
+            method.visitEnd();
+        }
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    private static byte[] generateText(Random random, int length) {
+        var text = new StringBuilder("{\"values\":[");
+        while (text.length() < length) {
+            text.append('"').append(Integer.toHexString(random.nextInt(1 << 12))).append("\",");
+        }
+        return text.append("\"\"]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] generateNestedJar(int index) throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        try (var output = new JarOutputStream(bytes)) {
+            for (var i = 0; i < 32; i++) {
+                var name = "org/nested" + index + "/Nested" + i;
+                put(output, name + ".class", generateClass(name, null));
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+}